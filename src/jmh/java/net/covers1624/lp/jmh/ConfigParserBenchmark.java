@@ -0,0 +1,68 @@
+package net.covers1624.lp.jmh;
+
+import net.covers1624.lp.docker.data.DockerContainer;
+import net.covers1624.lp.util.ConfigParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses realistic container label sets, including the compose and image
+ * labels we have to filter out. This includes the logging parse does
+ * for each configuration it finds.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+public class ConfigParserBenchmark {
+
+    @Param ({ "simple", "grouped" })
+    public String labels;
+
+    private DockerContainer container;
+
+    @Setup
+    public void setup() {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put("com.docker.compose.config-hash", "5b1f0c6a4e9d7c2b8a3f1e0d9c8b7a6f5e4d3c2b1a0f9e8d7c6b5a4f3e2d1c0b");
+        map.put("com.docker.compose.container-number", "1");
+        map.put("com.docker.compose.depends_on", "");
+        map.put("com.docker.compose.image", "sha256:0f7e6d5c4b3a29181706f5e4d3c2b1a0f9e8d7c6b5a4f3e2d1c0b9a8f7e6d5c4");
+        map.put("com.docker.compose.oneoff", "False");
+        map.put("com.docker.compose.project", "website");
+        map.put("com.docker.compose.project.config_files", "/srv/website/docker-compose.yml");
+        map.put("com.docker.compose.project.working_dir", "/srv/website");
+        map.put("com.docker.compose.service", "web");
+        map.put("com.docker.compose.version", "2.29.1");
+        map.put("org.opencontainers.image.source", "https://github.com/example/website");
+        map.put("org.opencontainers.image.version", "1.4.2");
+
+        map.put("LabelProxy.host", "www.example.com");
+        map.put("LabelProxy.port", "8080");
+        map.put("LabelProxy.location", "/");
+        if (labels.equals("grouped")) {
+            map.put("LabelProxy.allow.1", "10.0.0.0/8,192.168.0.0/16");
+            map.put("LabelProxy.deny.1", "all");
+            map.put("LabelProxy.rewrite.1", "^/old/(.*)$ /new/$1 permanent");
+            for (int i = 0; i < 4; i++) {
+                String group = "LabelProxy.api" + i + ".";
+                map.put(group + "host", "api" + i + ".example.com");
+                map.put(group + "port", String.valueOf(9000 + i));
+                map.put(group + "location", "~ ^/v" + i + "/(.*)$");
+                map.put(group + "proxy_pass", "/$1");
+                map.put(group + "https_redir", "true");
+                map.put(group + "client_max_body_size", "64M");
+            }
+        }
+        container = new DockerContainer("0f7e6d5c4b3a", new DockerContainer.Config(map), null);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return ConfigParser.parse(container, "172.18.0.5");
+    }
+}
@@ -0,0 +1,167 @@
+package net.covers1624.lp.jmh;
+
+import com.google.gson.*;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import net.covers1624.lp.cloudflare.data.zone.ListZonesResponse;
+import net.covers1624.lp.docker.data.ContainerSummary;
+import net.covers1624.lp.docker.data.DockerContainer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the streaming response adapters against reflective Gson
+ * parsing of the previous, untrimmed, response models.
+ * <p>
+ * Run with {@code ./gradlew jmh}, the gc profiler reports allocation rates.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+public class JsonParsingBenchmark {
+
+    private static final Gson GSON = new Gson();
+    private static final Type REFLECTIVE_CONTAINER_LIST = new TypeToken<List<ReflectiveContainerSummary>>() { }.getType();
+
+    private String containerInspect;
+    private String containerList;
+    private String zones;
+
+    @Setup
+    public void setup() throws IOException {
+        containerInspect = payload("docker_container_inspect.json");
+        containerList = payload("docker_container_list.json");
+        zones = payload("cloudflare_zones.json");
+    }
+
+    @Benchmark
+    public Object containerInspectReflective() {
+        return GSON.fromJson(new StringReader(containerInspect), ReflectiveContainer.class);
+    }
+
+    @Benchmark
+    public Object containerInspectStreaming() {
+        return GSON.fromJson(new StringReader(containerInspect), DockerContainer.class);
+    }
+
+    @Benchmark
+    public Object containerListReflective() {
+        return GSON.fromJson(new StringReader(containerList), REFLECTIVE_CONTAINER_LIST);
+    }
+
+    @Benchmark
+    public Object containerListStreaming() {
+        return GSON.fromJson(new StringReader(containerList), ContainerSummary.CONTAINER_LIST);
+    }
+
+    @Benchmark
+    public Object zonesReflective() {
+        return GSON.fromJson(new StringReader(zones), ReflectiveZonesResponse.class);
+    }
+
+    @Benchmark
+    public Object zonesStreaming() {
+        return GSON.fromJson(new StringReader(zones), ListZonesResponse.class);
+    }
+
+    private static String payload(String name) throws IOException {
+        try (InputStream is = JsonParsingBenchmark.class.getResourceAsStream("/payloads/" + name)) {
+            if (is == null) throw new IOException("Missing payload " + name);
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // region Previous models, parsed reflectively.
+    public record ReflectiveContainer(
+            @SerializedName ("Id") String id,
+            @SerializedName ("Config") Config config,
+            @SerializedName ("NetworkSettings") NetworkSettings networkSettings
+    ) {
+
+        public record Config(@SerializedName ("Labels") Map<String, String> labels) { }
+
+        public record NetworkSettings(@SerializedName ("Networks") Map<String, Network> networks) { }
+
+        public record Network(
+                @SerializedName ("Aliases") List<String> aliases,
+                @SerializedName ("NetworkId") String networkId,
+                @SerializedName ("EndpointId") String endpointId,
+                @SerializedName ("Gateway") String gateway,
+                @SerializedName ("IPAddress") String ipAddress
+        ) { }
+    }
+
+    public record ReflectiveContainerSummary(
+            @SerializedName ("Id") String id,
+            @SerializedName ("Names") List<String> names,
+            @SerializedName ("Image") String image,
+            @SerializedName ("Created") Long created,
+            @SerializedName ("Labels") Map<String, String> labels
+    ) { }
+
+    public static class ReflectiveZonesResponse {
+
+        public boolean success;
+        @JsonAdapter (TreeListOrSingleDeserializer.class)
+        public List<ReflectiveZone> result = new ArrayList<>();
+    }
+
+    public record ReflectiveZone(
+            Account account,
+            @SerializedName ("activated_on") Date activatedOn,
+            @SerializedName ("created_on") Date createdOn,
+            @SerializedName ("development_mode") int developmentMode,
+            String id,
+            Metadata meta,
+            @SerializedName ("modified_on") Date modifiedOn,
+            String name,
+            @SerializedName ("original_dnshost") String originalDnsHost,
+            @SerializedName ("original_name_servers") List<String> originalNameservers,
+            @SerializedName ("original_registrar") String originalRegistrar,
+            Owner owner,
+            @SerializedName ("vanity_name_servers") List<String> vanityNameServers
+    ) {
+
+        public record Account(String id, String name) { }
+
+        public record Metadata(
+                @SerializedName ("cdn_only") boolean cdnOnly,
+                @SerializedName ("custom_certificate_quota") int customCertificateQuota,
+                @SerializedName ("dns_only") boolean dnsOnly,
+                @SerializedName ("foundation_dns") boolean foundationDns,
+                @SerializedName ("page_rule_quota") int pageRuleQuota,
+                @SerializedName ("phishing_detected") boolean phishingDetected,
+                int step
+        ) { }
+
+        public record Owner(String id, String name, String type) { }
+    }
+
+    // The previous tree based list or single deserializer.
+    public static class TreeListOrSingleDeserializer implements JsonDeserializer<List<?>> {
+
+        @Override
+        public List<?> deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
+            if (json.isJsonObject()) {
+                JsonArray array = new JsonArray();
+                array.add(json);
+                json = array;
+            }
+            return context.deserialize(json, typeOfT);
+        }
+    }
+    // endregion
+}
@@ -0,0 +1,50 @@
+package net.covers1624.lp.jmh;
+
+import net.covers1624.lp.cloudflare.ZoneIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zone lookups, as done by {@code CloudflareService.getZoneInfo} once
+ * the zones have been loaded.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+public class ZoneIndexBenchmark {
+
+    @Param ({ "10", "100", "1000" })
+    public int zones;
+
+    private ZoneIndex<String> index;
+    private String[] hosts;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < zones; i++) {
+            map.put("zone" + i + ".com", "id" + i);
+        }
+        index = ZoneIndex.of(map);
+
+        // Mostly hits, a few misses which the negative cache would normally absorb.
+        hosts = new String[64];
+        for (int i = 0; i < hosts.length; i++) {
+            hosts[i] = i % 8 == 7
+                    ? "www.unknown" + i + ".net"
+                    : "api.service" + i + ".zone" + (i * 31 % zones) + ".com";
+        }
+    }
+
+    @Benchmark
+    public Object lookup() {
+        String host = hosts[next++ & (hosts.length - 1)];
+        return index.lookup(host);
+    }
+}
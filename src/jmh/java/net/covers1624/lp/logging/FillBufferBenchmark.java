@@ -0,0 +1,54 @@
+package net.covers1624.lp.logging;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs formatted log lines into a Discord embed description.
+ * <p>
+ * {@code fillBuffer} consumes its input, so each invocation copies the
+ * pending lines first. {@link #copy} measures that cost on its own.
+ * <p>
+ * Lives in the logging package, as {@code fillBuffer} is package private.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+public class FillBufferBenchmark {
+
+    // The embed description limit.
+    private static final int MAX = 4096;
+
+    @Param ({ "short", "long" })
+    public String lines;
+
+    private List<String> pending;
+
+    @Setup
+    public void setup() {
+        pending = new ArrayList<>();
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        for (int i = 0; i < 64; i++) {
+            // Long lines approximate stack traces, which get sliced.
+            int len = lines.equals("long") ? 2000 + rand.nextInt(6000) : 40 + rand.nextInt(120);
+            pending.add("[12:00:00] [main/INFO] [net.covers1624.lp.LabelProxy]: " + "x".repeat(len));
+        }
+    }
+
+    @Benchmark
+    public Object copy() {
+        return new LinkedList<>(pending);
+    }
+
+    @Benchmark
+    public String fillBuffer() {
+        return DiscordWebhookAppender.fillBuffer(new LinkedList<>(pending), MAX);
+    }
+}
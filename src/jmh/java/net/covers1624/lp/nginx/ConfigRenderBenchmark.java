@@ -0,0 +1,76 @@
+package net.covers1624.lp.nginx;
+
+import net.covers1624.lp.ContainerConfiguration;
+import net.covers1624.lp.letsencrypt.LetsEncryptService.CertInfo;
+import net.covers1624.lp.letsencrypt.OcspStapler;
+import net.covers1624.lp.nginx.NginxService.NginxHost;
+import net.covers1624.lp.nginx.NginxService.NginxHttpConfigGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders the nginx config for a single host.
+ * <p>
+ * Lives in the nginx package, as {@link NginxHost} can only be built from there.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+public class ConfigRenderBenchmark {
+
+    @Param ({ "1", "5" })
+    public int locations;
+
+    private final Path dhParam = Path.of("/srv/letsencrypt/dhparam.pem");
+    // Rendering only asks for known responders, it never fetches.
+    private final OcspStapler ocsp = new OcspStapler(null);
+
+    private NginxHost host;
+    private CertInfo certInfo;
+
+    @Setup
+    public void setup() {
+        host = new NginxHost("www.example.com");
+        for (int i = 0; i < locations; i++) {
+            host.containers.add(new ContainerConfiguration(
+                    "0f7e6d5c4b3a" + i,
+                    "172.18.0." + (i + 2),
+                    "www.example.com",
+                    8080 + i,
+                    true,
+                    false,
+                    i == 0 ? "/" : "~ ^/api" + i + "/(.*)$",
+                    i == 0 ? "" : "/$1",
+                    List.of("10.0.0.0/8"),
+                    List.of("all"),
+                    Map.of("client_max_body_size", List.of("64M"))
+            ));
+        }
+        // The ocsp response won't exist, so we also take the resolver branch.
+        Path dir = Path.of("/srv/letsencrypt/certs/www.example.com-0");
+        certInfo = new CertInfo(
+                "www.example.com",
+                new Date(),
+                new Date(),
+                null,
+                dir.resolve("domain.csr"),
+                dir.resolve("privkey.pem"),
+                dir.resolve("pubkey.pem"),
+                dir.resolve("cert.pem"),
+                dir.resolve("chain.pem"),
+                dir.resolve("fullchain.pem")
+        );
+    }
+
+    @Benchmark
+    public String render() {
+        return new NginxHttpConfigGenerator(dhParam, ocsp, host).render(certInfo);
+    }
+}
@@ -0,0 +1,76 @@
+package net.covers1624.lp.nginx;
+
+import net.covers1624.lp.ContainerConfiguration;
+import net.covers1624.lp.nginx.NginxService.NginxHost;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diffs every host against its previous state, as {@code NginxService.rebuild}
+ * does after any container change. Only the last host has actually changed.
+ * <p>
+ * Lives in the nginx package, as {@link NginxHost} can only be built from there.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+public class HostDiffBenchmark {
+
+    @Param ({ "10", "100", "1000" })
+    public int hosts;
+
+    private List<NginxHost> oldHosts;
+    private List<NginxHost> newHosts;
+
+    @Setup
+    public void setup() {
+        oldHosts = new ArrayList<>(hosts);
+        newHosts = new ArrayList<>(hosts);
+        for (int i = 0; i < hosts; i++) {
+            // Separate instances, so equality is actually compared.
+            oldHosts.add(host(i, 8080));
+            newHosts.add(host(i, i == hosts - 1 ? 8081 : 8080));
+        }
+    }
+
+    @Benchmark
+    public int diff() {
+        int changed = 0;
+        for (int i = 0; i < hosts; i++) {
+            if (oldHosts.get(i).hasChanged(newHosts.get(i))) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static NginxHost host(int i, int port) {
+        String name = "host" + i + ".example.com";
+        NginxHost host = new NginxHost(name);
+        host.containers.add(container(i, name, port, "/"));
+        host.containers.add(container(i, name, 9000, "~ ^/api/(.*)$"));
+        return host;
+    }
+
+    private static ContainerConfiguration container(int i, String name, int port, String location) {
+        return new ContainerConfiguration(
+                "container" + i,
+                "172.18." + (i / 250) + "." + (i % 250 + 2),
+                name,
+                port,
+                true,
+                false,
+                location,
+                "",
+                new ArrayList<>(List.of("10.0.0.0/8")),
+                new ArrayList<>(),
+                Map.of("client_max_body_size", new ArrayList<>(List.of("64M")))
+        );
+    }
+}
@@ -3,6 +3,7 @@ package net.covers1624.lp;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.annotations.JsonAdapter;
+import net.covers1624.lp.nginx.LogCodec;
 import net.covers1624.quack.gson.JsonUtils;
 import net.covers1624.quack.gson.PathTypeAdapter;
 import org.jetbrains.annotations.Nullable;
@@ -35,8 +36,10 @@ public class Config {
     public Docker docker = new Docker();
     public Nginx nginx = new Nginx();
     public LetsEncrypt letsEncrypt = new LetsEncrypt();
+    public Cloudflare cloudflare = new Cloudflare();
     public List<CloudflareAuth> cloudflareAuths = new ArrayList<>();
     public Discord discord = new Discord();
+    public Metrics metrics = new Metrics();
 
     public static class Docker {
 
@@ -55,6 +58,11 @@ public class Config {
         public String workerConnections = "1024";
         public String logFormat = "$host $remote_addr - $remote_user [$time_local] \"$request\" $status $body_bytes_sent \"$http_referer\" \"$http_user_agent\" \"$http_x_forwarded_for\"";
         public boolean compressLogsOnRotate = true;
+        public LogCodec logCompressionCodec = LogCodec.BZIP2;
+        public int logCompressionThreads = 0;
+        public boolean compressLogsInBackground = false;
+        public boolean accessLogMetrics = true;
+        public boolean warmRestart = false;
     }
 
     public static class LetsEncrypt {
@@ -62,8 +70,26 @@ public class Config {
         @JsonAdapter (PathTypeAdapter.class)
         public Path dir = Path.of("./letsencrypt").toAbsolutePath().normalize();
         public int dhParamBits = 4096;
+        public boolean generateDhParam = false;
         public @Nullable String email;
         public boolean staging = false;
+        public @Nullable String directoryUrl;
+        public int dnsPropagationSeconds = 60;
+        public double renewalFraction = 2D / 3D;
+        public double renewalJitter = 0.05;
+        public boolean reuseKeyOnRenewal = false;
+        public int keyPoolSize = 2;
+    }
+
+    public static class Cloudflare {
+
+        public String apiUrl = "https://api.cloudflare.com/client/v4";
+        public int perPage = 50;
+        public int zoneRefreshMinutes = 15;
+        public int negativeCacheMinutes = 5;
+        public double requestsPerSecond = 4;
+        public int requestBurst = 10;
+        public int maxAttempts = 4;
     }
 
     public static class CloudflareAuth {
@@ -79,6 +105,15 @@ public class Config {
         public @Nullable String webhookUrl;
         public @Nullable String name;
         public long[] alert = new long[0];
+        public int queueCapacity = 1024;
+        public int foldWindowSeconds = 60;
+    }
+
+    public static class Metrics {
+
+        public boolean enabled = false;
+        public String bind = "127.0.0.1";
+        public int port = 9184;
     }
 
     public static Config load(Path path) {
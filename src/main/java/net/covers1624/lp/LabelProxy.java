@@ -1,5 +1,6 @@
 package net.covers1624.lp;
 
+import com.google.common.base.Suppliers;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import net.covers1624.curl4j.CABundle;
 import net.covers1624.lp.cloudflare.CloudflareService;
@@ -8,7 +9,14 @@ import net.covers1624.lp.docker.data.ContainerSummary;
 import net.covers1624.lp.docker.data.DockerContainer;
 import net.covers1624.lp.docker.data.DockerNetwork;
 import net.covers1624.lp.letsencrypt.LetsEncryptService;
+import net.covers1624.lp.jfr.ConfigParseEvent;
+import net.covers1624.lp.jfr.ContainerInspectEvent;
+import net.covers1624.lp.jfr.ContainerScanEvent;
 import net.covers1624.lp.logging.DiscordWebhookAppender;
+import net.covers1624.lp.metrics.Counter;
+import net.covers1624.lp.metrics.Histogram;
+import net.covers1624.lp.metrics.MetricsRegistry;
+import net.covers1624.lp.metrics.MetricsServer;
 import net.covers1624.lp.nginx.NginxService;
 import net.covers1624.lp.util.ConfigParser;
 import net.covers1624.quack.collection.FastStream;
@@ -21,21 +29,23 @@ import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.filter.MarkerFilter;
 import org.apache.logging.log4j.core.layout.PatternLayout;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.Security;
 import java.time.Duration;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import static net.covers1624.lp.logging.Markers.DISCORD;
 import static net.covers1624.lp.logging.Markers.DISCORD_ONLY;
@@ -55,73 +65,119 @@ public class LabelProxy {
     public static final boolean RUNNING_AS_ROOT = areRunningAsRoot();
 
     static {
-        Security.addProvider(new BouncyCastleProvider());
         if (RUNNING_AS_ROOT) {
             LOGGER.info("Detected running as root.");
         }
     }
 
-    public final Config config = Config.load(Path.of("./config.json"));
-    public final Curl4jHttpEngine httpEngine = new Curl4jHttpEngine(CABundle.builtIn());
-    public final DockerService docker = new DockerService(this, httpEngine);
-    public final CloudflareService cloudflare = new CloudflareService(this, httpEngine);
-    public final LetsEncryptService letsEncrypt = new LetsEncryptService(this, cloudflare);
+    public final Config config;
+    public final MetricsRegistry metrics = new MetricsRegistry();
+    // Loading the CA bundle and libcurl is slow, leave it for whichever service needs it first.
+    public final Supplier<Curl4jHttpEngine> httpEngine = Suppliers.memoize(() -> new Curl4jHttpEngine(CABundle.builtIn()));
+    public final DockerService docker;
+    public final CloudflareService cloudflare;
+    public final LetsEncryptService letsEncrypt;
 
-    public final NginxService nginx = new NginxService(this, letsEncrypt);
+    public final NginxService nginx;
 
     private final Map<String, List<ContainerConfiguration>> containerConfigs = new HashMap<>();
     private final Set<String> broken = new HashSet<>();
+    // Containers restored from the state snapshot, which haven't been checked against docker yet.
+    private final Set<String> unvalidated = new HashSet<>();
+    private boolean reconcile;
+    private @Nullable StateSnapshot lastSnapshot;
+
+    private final Histogram scanLatency = metrics.histogram("labelproxy_scan_seconds", "Time taken to scan docker for container changes.");
+    private final Counter scanFailures = metrics.counter("labelproxy_scan_failures_total", "Container scans which threw an exception.");
+    private @Nullable MetricsServer metricsServer;
 
     private final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Schedule Executor").build());
 
     private boolean running = true;
 
+    public LabelProxy() {
+        this(Config.load(Path.of("./config.json")));
+    }
+
+    public LabelProxy(Config config) {
+        this.config = config;
+        docker = new DockerService(this, httpEngine);
+        cloudflare = new CloudflareService(this, httpEngine);
+        letsEncrypt = new LetsEncryptService(this, cloudflare);
+        nginx = new NginxService(this, letsEncrypt);
+    }
+
     public static void main(String[] args) {
-        System.exit(new LabelProxy().mainI(args));
+        System.exit(new LabelProxy().run());
     }
 
-    private int mainI(String[] args) {
+    /**
+     * Validate the environment, start nginx and monitor for container changes,
+     * until {@link #quit()} is called.
+     *
+     * @return The exit code.
+     */
+    public int run() {
         if (!configureDiscordLogging()) return 1;
         LOGGER.info(DISCORD_ONLY, "Starting Label Proxy..");
+        // Nothing else is running on the scheduler yet. Scan the certificate cache whilst we validate.
+        CompletableFuture<Void> certsLoaded = CompletableFuture.runAsync(letsEncrypt::loadCertificates, SCHEDULER);
         if (!ensureDockerAccessible()) return 1;
         if (!nginx.validate()) return 1;
         if (!cloudflare.validate()) return 1;
         if (!letsEncrypt.validate()) return 1;
         if (!prepareNetwork()) return 1;
+        if (!startMetrics()) return 1;
 
         var ownContainer = findOwnContainer();
         if (ownContainer != null) {
             attachToNetwork(ownContainer);
         }
 
+        // Zones are polled and the ACME account logged in to in the background. Nginx only
+        // has to wait for the certificate cache, so hosts with cached certificates are served straight away.
+        cloudflare.setup();
+        try {
+            certsLoaded.join();
+        } catch (CompletionException ex) {
+            LOGGER.error(DISCORD, "Failed to load certificates.", ex.getCause());
+            return 1;
+        }
         letsEncrypt.setup();
-        nginx.startNginx();
+        startNginx();
         scheduleLogRotation();
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             LOGGER.info("Stopping gracefully..");
             SCHEDULER.shutdown();
+            if (metricsServer != null) metricsServer.stop();
             nginx.stopNginx();
             quit();
         }));
 
         LOGGER.info("Monitoring for container changes..");
-        int counter = 0;
         while (running) {
+            long start = System.nanoTime();
             try {
                 scanContainers(ownContainer);
             } catch (Throwable ex) {
+                scanFailures.inc();
                 LOGGER.error(DISCORD, "Failed to scan containers.", ex);
+            } finally {
+                scanLatency.observeSince(start);
             }
-            boolean oneHourTrigger = counter % TimeUnit.HOURS.toSeconds(1) == 0;
-            if (oneHourTrigger) {
-                letsEncrypt.expiryScan();
+            if (config.nginx.warmRestart) {
+                saveSnapshot();
+            }
+            try {
+                letsEncrypt.processRenewals();
+            } catch (Throwable ex) {
+                LOGGER.error(DISCORD, "Failed to process certificate renewals.", ex);
             }
             try {
                 Thread.sleep(TimeUnit.SECONDS.toMillis(1));
             } catch (InterruptedException ignored) {
             }
-            counter++;
         }
 
         return 0;
@@ -135,6 +191,55 @@ public class LabelProxy {
         return running;
     }
 
+    private void startNginx() {
+        StateSnapshot snapshot = config.nginx.warmRestart ? StateSnapshot.load(snapshotPath()) : null;
+        if (snapshot == null) {
+            nginx.startNginx();
+            return;
+        }
+
+        containerConfigs.putAll(snapshot.containers());
+        unvalidated.addAll(snapshot.containers().keySet());
+        reconcile = true;
+        nginx.startNginx(snapshot.hosts(), allConfigurations());
+    }
+
+    private void saveSnapshot() {
+        StateSnapshot snapshot = new StateSnapshot(Map.copyOf(containerConfigs), nginx.snapshotHosts());
+        if (snapshot.equals(lastSnapshot)) return;
+
+        try {
+            snapshot.save(snapshotPath());
+            lastSnapshot = snapshot;
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to save state snapshot.", ex);
+        }
+    }
+
+    private Path snapshotPath() {
+        return config.nginx.dir.resolve("state.json");
+    }
+
+    private List<ContainerConfiguration> allConfigurations() {
+        return FastStream.of(containerConfigs.values())
+                .flatMap(e -> e)
+                .toList();
+    }
+
+    private boolean startMetrics() {
+        if (!config.metrics.enabled) return true;
+
+        metrics.gauge("labelproxy_containers", "Containers with LabelProxy configuration.", containerConfigs::size);
+        metricsServer = new MetricsServer(metrics, new InetSocketAddress(config.metrics.bind, config.metrics.port));
+        try {
+            metricsServer.start();
+        } catch (IOException ex) {
+            LOGGER.error(DISCORD, "Failed to start metrics server on {}:{}.", config.metrics.bind, config.metrics.port, ex);
+            return false;
+        }
+        return true;
+    }
+
     private boolean ensureDockerAccessible() {
         Path path = Path.of(config.docker.socket);
         if (!Files.exists(path)) {
@@ -218,6 +323,10 @@ public class LabelProxy {
     }
 
     private void scanContainers(@Nullable DockerContainer ownContainer) {
+        ContainerScanEvent scanEvent = new ContainerScanEvent();
+        scanEvent.begin();
+        // Changes are timed from the start of the scan which detected them.
+        long detectedAt = System.nanoTime();
         boolean containersModified = false;
 
         List<ContainerSummary> summaries = docker.listContainers();
@@ -226,11 +335,24 @@ public class LabelProxy {
             String id = summary.id();
             seen.add(id);
 
+            ContainerInspectEvent inspectEvent = new ContainerInspectEvent();
+            inspectEvent.begin();
             DockerContainer container = docker.inspectContainer(id);
+            inspectEvent.containerId = id;
+            inspectEvent.commit();
             if (container == null) continue;
-            if (containerConfigs.containsKey(id) || broken.contains(id)) continue;
-            if (!container.config().hasLabelWithPrefix(PREFIX)) continue;
-            LOGGER.info(DISCORD, "New container found: {}", id);
+            boolean restored = unvalidated.remove(id);
+            if (!restored && (containerConfigs.containsKey(id) || broken.contains(id))) continue;
+            if (!container.config().hasLabelWithPrefix(PREFIX)) {
+                if (restored) {
+                    containerConfigs.remove(id);
+                    containersModified = true;
+                }
+                continue;
+            }
+            if (!restored) {
+                LOGGER.info(DISCORD, "New container found: {}", id);
+            }
             boolean self = ownContainer != null && ownContainer.id().equals(id);
 
             try {
@@ -245,16 +367,33 @@ public class LabelProxy {
                     }
                 }
 
+                ConfigParseEvent parseEvent = new ConfigParseEvent();
+                parseEvent.begin();
                 List<ContainerConfiguration> containerConfiguration = ConfigParser.parse(container, network != null ? network.ipAddress() : null);
+                parseEvent.containerId = id;
+                parseEvent.configurations = containerConfiguration.size();
+                parseEvent.commit();
+                // Restored containers may have changed whilst we were down, their IP for example.
+                if (restored && containerConfiguration.equals(containerConfigs.get(id))) continue;
+                if (restored) {
+                    LOGGER.info(DISCORD, "Container changed since last run: {}", id);
+                }
+
                 containerConfigs.put(id, containerConfiguration);
                 containersModified = true;
             } catch (Throwable ex) {
                 LOGGER.error(DISCORD, "Failed to build configuration for {}", id, ex);
                 broken.add(id);
+                if (restored) {
+                    containerConfigs.remove(id);
+                    containersModified = true;
+                }
             }
         }
         // Cleanup set, so it doesn't just fill up over time.
         broken.removeIf(e -> !seen.contains(e));
+        // Anything not seen is removed below.
+        unvalidated.clear();
 
         for (var iterator = containerConfigs.entrySet().iterator(); iterator.hasNext(); ) {
             Map.Entry<String, List<ContainerConfiguration>> entry = iterator.next();
@@ -265,13 +404,16 @@ public class LabelProxy {
             iterator.remove();
             containersModified = true;
         }
-        if (containersModified) {
+        scanEvent.containers = summaries.size();
+        scanEvent.modified = containersModified;
+        scanEvent.commit();
+        if (reconcile) {
+            // Always reconcile after a warm restart, hosts whose configs couldn't be reused still need building.
+            reconcile = false;
+            nginx.reconcile(allConfigurations(), detectedAt);
+        } else if (containersModified) {
             LOGGER.info("Modifications found.");
-            nginx.rebuild(
-                    FastStream.of(containerConfigs.values())
-                            .flatMap(e -> e)
-                            .toList()
-            );
+            nginx.rebuild(allConfigurations(), detectedAt);
         }
     }
 
@@ -0,0 +1,57 @@
+package net.covers1624.lp;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import net.covers1624.quack.gson.JsonUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State persisted between runs, for warm restarts.
+ * <p>
+ * Nothing in here is trusted blindly. Containers are re-validated against docker on
+ * the first scan, and host configs are only reused if they still match their hash.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public record StateSnapshot(
+        // Container id -> the configurations parsed from its labels.
+        Map<String, List<ContainerConfiguration>> containers,
+        // Host -> hash of its active nginx config.
+        Map<String, String> hosts
+) {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final Gson GSON = new Gson();
+
+    public static @Nullable StateSnapshot load(Path path) {
+        if (Files.notExists(path)) return null;
+
+        try {
+            StateSnapshot snapshot = JsonUtils.parse(GSON, path, StateSnapshot.class);
+            if (snapshot == null || snapshot.containers == null || snapshot.hosts == null) {
+                LOGGER.warn("State snapshot is incomplete, ignoring.");
+                return null;
+            }
+            return snapshot;
+        } catch (IOException | JsonParseException ex) {
+            LOGGER.warn("Failed to read state snapshot, ignoring.", ex);
+            return null;
+        }
+    }
+
+    public void save(Path path) throws IOException {
+        // Write then move, so a crash mid-write doesn't lose the previous snapshot.
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        JsonUtils.write(GSON, tmp, this);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -1,15 +1,18 @@
 package net.covers1624.lp.cloudflare;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import net.covers1624.lp.Config;
 import net.covers1624.lp.Config.CloudflareAuth;
 import net.covers1624.lp.LabelProxy;
 import net.covers1624.lp.cloudflare.data.CloudflareResponse;
-import net.covers1624.lp.cloudflare.data.dns.CreateDNSRecordResponse;
-import net.covers1624.lp.cloudflare.data.dns.DeleteDnsRecordResponse;
-import net.covers1624.lp.cloudflare.data.dns.ListDNSRecordsResponse;
-import net.covers1624.lp.cloudflare.data.dns.RecordBuilder;
+import net.covers1624.lp.cloudflare.data.CloudflareResponse.ResultInfo;
+import net.covers1624.lp.cloudflare.data.dns.*;
 import net.covers1624.lp.cloudflare.data.zone.ListZonesResponse;
+import net.covers1624.lp.jfr.CloudflareRequestEvent;
+import net.covers1624.lp.metrics.Counter;
+import net.covers1624.lp.metrics.Histogram;
+import net.covers1624.lp.util.TokenBucket;
 import net.covers1624.quack.collection.FastStream;
 import net.covers1624.quack.gson.JsonUtils;
 import net.covers1624.quack.net.httpapi.EngineRequest;
@@ -18,11 +21,21 @@ import net.covers1624.quack.net.httpapi.WebBody;
 import net.covers1624.quack.net.httpapi.curl4j.Curl4jHttpEngine;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import static java.util.Objects.requireNonNull;
 
@@ -35,13 +48,41 @@ public class CloudflareService {
 
     private static final Gson GSON = new Gson();
 
+    private static final Duration BASE_BACKOFF = Duration.ofMillis(500);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(10);
+    // Used when a 429 does not tell us how long to wait.
+    private static final Duration DEFAULT_RETRY_AFTER = Duration.ofSeconds(5);
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Cloudflare Executor %d").build());
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Cloudflare Zone Refresh").build());
+
     private final Config config;
-    private final Curl4jHttpEngine httpEngine;
+    private final Supplier<Curl4jHttpEngine> httpEngine;
+
+    // Swapped out wholesale on refresh, lookups never lock. Null until the first poll.
+    private volatile @Nullable ZoneIndex<ZoneInfo> zones;
+    private final Object REFRESH_LOCK = new Object();
+    // Hostnames which matched no zone, mapped to when we may try them again.
+    private final Map<String, Instant> misses = new ConcurrentHashMap<>();
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+
+    // Cloudflare rate limits per user, so we do the same.
+    private final Map<CloudflareAuth, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final Histogram requestLatency = Histogram.latency();
+    private final Counter requests = new Counter();
+    private final Counter throttledRequests = new Counter();
+    private final Counter retriedRequests = new Counter();
 
-    private final Map<String, ZoneInfo> zones = new HashMap<>();
+    public CloudflareService(LabelProxy proxy, Supplier<Curl4jHttpEngine> httpEngine) {
+        this(proxy.config, httpEngine);
+        proxy.metrics.register("labelproxy_cloudflare_request_seconds", "Cloudflare API request latency, per attempt.", requestLatency);
+        proxy.metrics.register("labelproxy_cloudflare_requests_total", "Cloudflare API requests sent.", requests);
+        proxy.metrics.register("labelproxy_cloudflare_throttled_total", "Cloudflare API requests which were rate limited.", throttledRequests);
+        proxy.metrics.register("labelproxy_cloudflare_retried_total", "Cloudflare API requests which were retried.", retriedRequests);
+    }
 
-    public CloudflareService(LabelProxy proxy, Curl4jHttpEngine httpEngine) {
-        this.config = proxy.config;
+    public CloudflareService(Config config, Supplier<Curl4jHttpEngine> httpEngine) {
+        this.config = config;
         this.httpEngine = httpEngine;
     }
 
@@ -54,49 +95,223 @@ public class CloudflareService {
         return true;
     }
 
-    public ListZonesResponse listZones(CloudflareAuth auth) throws IOException {
-        EngineRequest request = httpEngine.newRequest()
-                .method("GET", null)
-                .url("https://api.cloudflare.com/client/v4/zones");
-        return executeRequest(auth, request, ListZonesResponse.class);
+    public void setup() {
+        SCHEDULER.scheduleWithFixedDelay(this::refreshZones, 0, config.cloudflare.zoneRefreshMinutes, TimeUnit.MINUTES);
+    }
+
+    public List<ListZonesResponse.Zone> listZones(CloudflareAuth auth) throws IOException {
+        return fetchAllPages(auth, config.cloudflare.apiUrl + "/zones", ListZonesResponse.class);
     }
 
-    public ListDNSRecordsResponse getDnsRecords(ZoneInfo info) throws IOException {
-        EngineRequest request = httpEngine.newRequest()
-                .method("GET", null)
-                .url("https://api.cloudflare.com/client/v4/zones/" + info.zone.id() + "/dns_records");
-        return executeRequest(info.auth, request, ListDNSRecordsResponse.class);
+    public List<DnsRecord> getDnsRecords(ZoneInfo info) throws IOException {
+        return fetchAllPages(info.auth, config.cloudflare.apiUrl + "/zones/" + info.zone.id() + "/dns_records", ListDNSRecordsResponse.class);
     }
 
-    public CreateDNSRecordResponse createDNSRecord(ZoneInfo info, RecordBuilder record) throws IOException {
-        EngineRequest request = httpEngine.newRequest()
-                .method("POST", WebBody.string(GSON.toJson(record), "application/json"))
-                .url("https://api.cloudflare.com/client/v4/zones/" + info.zone.id() + "/dns_records");
-        return executeRequest(info.auth, request, CreateDNSRecordResponse.class);
+    /**
+     * Apply many record changes to a zone in a single request.
+     *
+     * @param info  The zone.
+     * @param batch The changes.
+     * @return The response.
+     */
+    public BatchDNSRecordsResponse batchDNSRecords(ZoneInfo info, BatchBuilder batch) throws IOException {
+        return executeRequest(
+                info.auth,
+                "POST",
+                config.cloudflare.apiUrl + "/zones/" + info.zone.id() + "/dns_records/batch",
+                WebBody.string(GSON.toJson(batch), "application/json"),
+                BatchDNSRecordsResponse.class
+        );
     }
 
     public DeleteDnsRecordResponse deleteDNSRecord(ZoneInfo info, String identifier) throws IOException {
-        EngineRequest request = httpEngine.newRequest()
-                .method("DELETE", null)
-                .url("https://api.cloudflare.com/client/v4/zones/" + info.zone.id() + "/dns_records/" + identifier);
-        return executeRequest(info.auth, request, DeleteDnsRecordResponse.class);
+        return executeRequest(
+                info.auth,
+                "DELETE",
+                config.cloudflare.apiUrl + "/zones/" + info.zone.id() + "/dns_records/" + identifier,
+                null,
+                DeleteDnsRecordResponse.class
+        );
+    }
+
+    /**
+     * Delete many records from a zone.
+     * <p>
+     * The records are deleted in a single batch. A batch is a POST, so it is never
+     * retried on server errors. If it fails, each record is deleted individually,
+     * as DELETEs are retried.
+     *
+     * @param info The zone.
+     * @param ids  The record identifiers.
+     */
+    public void deleteDNSRecords(ZoneInfo info, List<String> ids) throws IOException {
+        if (ids.isEmpty()) return;
+
+        BatchBuilder batch = new BatchBuilder();
+        ids.forEach(batch::delete);
+        try {
+            batchDNSRecords(info, batch);
+            return;
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to batch delete {} records, deleting individually.", ids.size(), ex);
+        }
+
+        IOException failure = null;
+        for (String id : ids) {
+            try {
+                deleteDNSRecord(info, id);
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
+                }
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Fetch every page of a paginated list endpoint.
+     * <p>
+     * The first page tells us how many pages exist, the remaining
+     * pages are then fetched concurrently.
+     */
+    private <R, T extends CloudflareResponse<R>> List<R> fetchAllPages(CloudflareAuth auth, String url, Class<T> rClass) throws IOException {
+        T first = fetchPage(auth, url, 1, rClass);
+        List<R> results = new ArrayList<>(first.result);
+        ResultInfo info = first.resultInfo;
+        if (info == null || info.totalPages() <= 1) return results;
+
+        List<CompletableFuture<T>> pages = new ArrayList<>();
+        for (int page = 2; page <= info.totalPages(); page++) {
+            int p = page;
+            pages.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return fetchPage(auth, url, p, rClass);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }, EXECUTOR));
+        }
+        for (CompletableFuture<T> page : pages) {
+            results.addAll(join(page).result);
+        }
+        return results;
+    }
+
+    private <T extends CloudflareResponse<?>> T fetchPage(CloudflareAuth auth, String url, int page, Class<T> rClass) throws IOException {
+        return executeRequest(auth, "GET", url + "?page=" + page + "&per_page=" + config.cloudflare.perPage, null, rClass);
     }
 
-    private <T extends CloudflareResponse<?>> T executeRequest(CloudflareAuth auth, EngineRequest request, Class<T> rClass) throws IOException {
+    /**
+     * Execute a request against the Cloudflare API.
+     * <p>
+     * Requests are rate limited per account. Requests rejected with 429 are
+     * always retried after the requested delay, as Cloudflare did not process them.
+     * Transport failures and server errors are only retried for idempotent methods,
+     * with jittered exponential backoff.
+     */
+    private <T extends CloudflareResponse<?>> T executeRequest(CloudflareAuth auth, String method, String url, @Nullable WebBody body, Class<T> rClass) throws IOException {
+        boolean idempotent = method.equals("GET") || method.equals("DELETE");
+        TokenBucket bucket = buckets.computeIfAbsent(auth, e -> new TokenBucket(config.cloudflare.requestsPerSecond, config.cloudflare.requestBurst));
+        int maxAttempts = Math.max(1, config.cloudflare.maxAttempts);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                bucket.acquire();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted whilst waiting for rate limit.");
+            }
+
+            Reply<T> reply;
+            requests.inc();
+            long start = System.nanoTime();
+            CloudflareRequestEvent event = new CloudflareRequestEvent();
+            event.begin();
+            try {
+                reply = send(auth, method, url, body, rClass);
+                event.status = reply.status;
+            } catch (IOException ex) {
+                if (!idempotent || attempt >= maxAttempts) throw ex;
+                LOGGER.warn("Cloudflare request {} {} failed, retrying. Attempt {}/{}", method, url, attempt, maxAttempts, ex);
+                backoff(attempt);
+                continue;
+            } finally {
+                requestLatency.observeSince(start);
+                event.method = method;
+                event.url = url;
+                event.attempt = attempt;
+                event.commit();
+            }
+
+            if (reply.status == 429) {
+                throttledRequests.inc();
+                Duration retryAfter = parseRetryAfter(reply.retryAfter);
+                bucket.pause(retryAfter);
+                if (attempt >= maxAttempts) throw new IOException("Rate limited by Cloudflare. " + method + " " + url);
+                LOGGER.warn("Rate limited by Cloudflare, retrying in {}s. Attempt {}/{}", retryAfter.toSeconds(), attempt, maxAttempts);
+                retriedRequests.inc();
+                continue;
+            }
+            if (reply.response == null) {
+                if (!idempotent || attempt >= maxAttempts) throw new IOException("Cloudflare returned " + reply.status + ". " + method + " " + url);
+                LOGGER.warn("Cloudflare returned {} for {} {}, retrying. Attempt {}/{}", reply.status, method, url, attempt, maxAttempts);
+                backoff(attempt);
+                continue;
+            }
+            if (!reply.response.success) {
+                throw new IOException("Request failed.\n" + reply.response.errorsToString());
+            }
+            return reply.response;
+        }
+    }
+
+    private <T extends CloudflareResponse<?>> Reply<T> send(CloudflareAuth auth, String method, String url, @Nullable WebBody body, Class<T> rClass) throws IOException {
+        EngineRequest request = httpEngine.get().newRequest()
+                .method(method, body)
+                .url(url);
         addCFAuth(auth, request);
-        T resp;
         try (EngineResponse response = request.execute()) {
-            WebBody body = response.body();
-            if (body == null) throw new IOException("Expected http body. Response code: " + response.statusCode());
+            int status = response.statusCode();
+            if (status == 429) return new Reply<>(status, response.headers().get("Retry-After"), null);
+            // Server errors are not guaranteed to have a json body.
+            if (status >= 500) return new Reply<>(status, null, null);
 
-            try (InputStream is = body.open()) {
-                resp = JsonUtils.parse(GSON, is, rClass);
+            WebBody respBody = response.body();
+            if (respBody == null) throw new IOException("Expected http body. Response code: " + status);
+
+            try (InputStream is = respBody.open()) {
+                return new Reply<>(status, null, JsonUtils.parse(GSON, is, rClass));
             }
         }
-        if (!resp.success) {
-            throw new IOException("Request failed.\n" + resp.errorsToString());
+    }
+
+    private void backoff(int attempt) throws IOException {
+        retriedRequests.inc();
+        // Full jitter, so concurrent callers don't retry in lockstep.
+        long cap = Math.min(MAX_BACKOFF.toMillis(), BASE_BACKOFF.toMillis() << Math.min(attempt, 16));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted whilst backing off.");
+        }
+    }
+
+    private static Duration parseRetryAfter(@Nullable String header) {
+        if (header == null) return DEFAULT_RETRY_AFTER;
+        header = header.strip();
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(header)));
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            // May also be a http date.
+            Instant at = ZonedDateTime.parse(header, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            Duration wait = Duration.between(Instant.now(), at);
+            return wait.isNegative() ? Duration.ZERO : wait;
+        } catch (DateTimeParseException ignored) {
         }
-        return resp;
+        return DEFAULT_RETRY_AFTER;
     }
 
     private void addCFAuth(CloudflareAuth auth, EngineRequest request) {
@@ -109,36 +324,86 @@ public class CloudflareService {
     }
 
     public ZoneInfo getZoneInfo(String zone) {
-        synchronized (zones) {
-            ZoneInfo info = FastStream.of(zones.entrySet())
-                    .filter(e -> zone.endsWith(e.getKey()))
-                    .map(Map.Entry::getValue)
-                    .onlyOrDefault();
-            if (info != null) return info;
-            pollZones();
-            info = FastStream.of(zones.entrySet())
-                    .filter(e -> zone.endsWith(e.getKey()))
-                    .map(Map.Entry::getValue)
-                    .onlyOrDefault();
-            if (info != null) return info;
+        ZoneIndex<ZoneInfo> index = zones;
+        if (index == null) {
+            // Cold, we have no choice but to block.
+            synchronized (REFRESH_LOCK) {
+                index = zones;
+                if (index == null) {
+                    index = zones = pollZones();
+                }
+            }
+        }
+        ZoneInfo info = index.lookup(zone);
+        if (info != null) return info;
 
-            throw new RuntimeException("Zone does not exist on any configured accounts: " + zone);
+        String key = zone.toLowerCase(Locale.ROOT);
+        Instant now = Instant.now();
+        Instant retryAt = misses.get(key);
+        if (retryAt == null || !retryAt.isAfter(now)) {
+            // The zone may have been added since our last poll, pick it up in the background.
+            misses.put(key, now.plus(Duration.ofMinutes(config.cloudflare.negativeCacheMinutes)));
+            queueRefresh();
         }
+        throw new RuntimeException("Zone does not exist on any configured accounts: " + zone);
     }
 
-    private void pollZones() {
-        zones.clear();
+    private void queueRefresh() {
+        if (!refreshQueued.compareAndSet(false, true)) return;
+
+        SCHEDULER.execute(() -> {
+            refreshQueued.set(false);
+            refreshZones();
+        });
+    }
+
+    private void refreshZones() {
+        try {
+            ZoneIndex<ZoneInfo> index = pollZones();
+            synchronized (REFRESH_LOCK) {
+                zones = index;
+            }
+            misses.keySet().removeIf(e -> index.lookup(e) != null);
+            LOGGER.debug("Refreshed {} Cloudflare zones.", index.size());
+        } catch (Throwable ex) {
+            LOGGER.warn("Failed to refresh Cloudflare zones.", ex);
+        }
+    }
+
+    private ZoneIndex<ZoneInfo> pollZones() {
+        // Query all accounts at the same time.
+        List<CompletableFuture<List<ZoneInfo>>> futures = new ArrayList<>();
         for (CloudflareAuth auth : config.cloudflareAuths) {
-            try {
-                ListZonesResponse resp = listZones(auth);
-                for (ListZonesResponse.Zone zone : resp.result) {
-                    zones.put(zone.name(), new ZoneInfo(zone, auth));
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return FastStream.of(listZones(auth))
+                            .map(zone -> new ZoneInfo(zone, auth))
+                            .toList();
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to list zones.", ex);
                 }
-            } catch (IOException ex) {
-                throw new RuntimeException("Failed to list zones.", ex);
+            }, EXECUTOR));
+        }
+
+        Map<String, ZoneInfo> zones = new HashMap<>();
+        for (CompletableFuture<List<ZoneInfo>> future : futures) {
+            for (ZoneInfo info : join(future)) {
+                zones.put(info.zone.name(), info);
             }
         }
+        return ZoneIndex.of(zones);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException rEx) throw rEx;
+            throw ex;
+        }
     }
 
     public record ZoneInfo(ListZonesResponse.Zone zone, Config.CloudflareAuth auth) { }
+
+    private record Reply<T>(int status, @Nullable String retryAfter, @Nullable T response) { }
 }
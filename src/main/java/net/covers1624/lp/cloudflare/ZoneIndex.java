@@ -0,0 +1,93 @@
+package net.covers1624.lp.cloudflare;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable index of zones, for longest suffix matching of hostnames.
+ * <p>
+ * Zones are stored in a trie keyed by reversed domain labels, so
+ * {@code sub.example.com} is stored as {@code com -> example -> sub}.
+ * Lookups are {@code O(labels)} in the queried hostname.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public final class ZoneIndex<T> {
+
+    private final Node<T> root;
+    private final int size;
+
+    private ZoneIndex(Node<T> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    public static <T> ZoneIndex<T> empty() {
+        return new ZoneIndex<>(new Node<>(), 0);
+    }
+
+    /**
+     * Build a new index from the given zones.
+     *
+     * @param zones The zone names mapped to their values.
+     * @return The index.
+     */
+    public static <T> ZoneIndex<T> of(Map<String, T> zones) {
+        Node<T> root = new Node<>();
+        for (Map.Entry<String, T> entry : zones.entrySet()) {
+            String[] labels = labels(entry.getKey());
+            Node<T> node = root;
+            for (int i = labels.length - 1; i >= 0; i--) {
+                node = node.children.computeIfAbsent(labels[i], e -> new Node<>());
+            }
+            node.value = entry.getValue();
+        }
+        return new ZoneIndex<>(root, zones.size());
+    }
+
+    /**
+     * Find the most specific zone containing the given hostname.
+     *
+     * @param host The hostname.
+     * @return The value for the zone, or {@code null} if no zone matched.
+     */
+    public @Nullable T lookup(String host) {
+        String[] labels = labels(host);
+        Node<T> node = root;
+        T found = null;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            node = node.children.get(labels[i]);
+            if (node == null) break;
+            if (node.value != null) {
+                found = node.value;
+            }
+        }
+        return found;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private static String[] labels(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        // Fully qualified names may have a trailing dot.
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return name.split("\\.");
+    }
+
+    private static final class Node<T> {
+
+        private final Map<String, Node<T>> children = new HashMap<>();
+        private @Nullable T value;
+    }
+}
@@ -1,11 +1,19 @@
 package net.covers1624.lp.cloudflare.data;
 
-import com.google.gson.*;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
 import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import net.covers1624.quack.collection.FastStream;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
@@ -18,8 +26,9 @@ public abstract class CloudflareResponse<T> {
     public boolean success = true; // Default to true for responses which have slim bodies for success.
     public List<Error> errors = new ArrayList<>();
     public List<Message> messages = new ArrayList<>();
+    @SerializedName ("result_info")
     public @Nullable ResultInfo resultInfo;
-    @JsonAdapter (ListOrSingleDeserializer.class)
+    @JsonAdapter (ListOrSingleAdapterFactory.class)
     public List<T> result = new ArrayList<>();
 
     public record Error(long code, String message) {
@@ -36,7 +45,8 @@ public abstract class CloudflareResponse<T> {
             int count,
             int page,
             @SerializedName ("per_page") int perPage,
-            @SerializedName ("total_count") int totalCount
+            @SerializedName ("total_count") int totalCount,
+            @SerializedName ("total_pages") int totalPages
     ) {
     }
 
@@ -47,17 +57,31 @@ public abstract class CloudflareResponse<T> {
     // TODO, The cloudflare API docs are unclear if this can actually occur for a singular request.
     //       I suspect it probably can't as it would complicate object modeling it, like we are here.
     //       However, as of writing the DNSCreate response _may_ exhibit this behaviour.
-    public static class ListOrSingleDeserializer implements JsonDeserializer<List<?>> {
+    public static class ListOrSingleAdapterFactory implements TypeAdapterFactory {
 
         @Override
-        public List<?> deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            // If it's an object, wrap it in an array.
-            if (json.isJsonObject()) {
-                JsonArray array = new JsonArray();
-                array.add(json);
-                json = array;
-            }
-            return context.deserialize(json, typeOfT);
+        @SuppressWarnings ("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            Type elementType = type.getType() instanceof ParameterizedType pType ? pType.getActualTypeArguments()[0] : Object.class;
+            TypeAdapter<List<Object>> listAdapter = (TypeAdapter<List<Object>>) gson.getAdapter(type);
+            TypeAdapter<Object> elementAdapter = (TypeAdapter<Object>) gson.getAdapter(TypeToken.get(elementType));
+            return (TypeAdapter<T>) new TypeAdapter<List<Object>>() {
+                @Override
+                public void write(JsonWriter out, List<Object> value) throws IOException {
+                    listAdapter.write(out, value);
+                }
+
+                @Override
+                public List<Object> read(JsonReader in) throws IOException {
+                    // If it's an object, wrap it in a list.
+                    if (in.peek() == JsonToken.BEGIN_OBJECT) {
+                        List<Object> list = new ArrayList<>(1);
+                        list.add(elementAdapter.read(in));
+                        return list;
+                    }
+                    return listAdapter.read(in);
+                }
+            };
         }
     }
 }
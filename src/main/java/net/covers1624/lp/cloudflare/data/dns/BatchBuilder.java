@@ -0,0 +1,55 @@
+package net.covers1624.lp.cloudflare.data.dns;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a request for the {@code dns_records/batch} endpoint.
+ * <p>
+ * Cloudflare applies the operations in the order deletes, patches, puts, posts,
+ * as a single transaction.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class BatchBuilder {
+
+    public List<Delete> deletes = new ArrayList<>();
+    public List<RecordBuilder> patches = new ArrayList<>();
+    public List<RecordBuilder> puts = new ArrayList<>();
+    public List<RecordBuilder> posts = new ArrayList<>();
+
+    public BatchBuilder delete(String id) {
+        deletes.add(new Delete(id));
+        return this;
+    }
+
+    public BatchBuilder patch(RecordBuilder record) {
+        if (record.id == null) throw new IllegalArgumentException("Patched records require an id.");
+
+        patches.add(record);
+        return this;
+    }
+
+    public BatchBuilder put(RecordBuilder record) {
+        if (record.id == null) throw new IllegalArgumentException("Overwritten records require an id.");
+
+        puts.add(record);
+        return this;
+    }
+
+    public BatchBuilder post(RecordBuilder record) {
+        posts.add(record);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return deletes.isEmpty() && patches.isEmpty() && puts.isEmpty() && posts.isEmpty();
+    }
+
+    public int size() {
+        return deletes.size() + patches.size() + puts.size() + posts.size();
+    }
+
+    public record Delete(String id) {
+    }
+}
@@ -0,0 +1,48 @@
+package net.covers1624.lp.cloudflare.data.dns;
+
+import net.covers1624.lp.cloudflare.data.CloudflareResponse;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class BatchDNSRecordsResponse extends CloudflareResponse<BatchDNSRecordsResponse.Result> {
+
+    /**
+     * @return The single result object of the batch.
+     */
+    public Result batch() {
+        return result.isEmpty() ? new Result(null, null, null, null) : result.get(0);
+    }
+
+    // Cloudflare omits operations which were not part of the batch.
+    public record Result(
+            @Nullable List<DnsRecord> deletes,
+            @Nullable List<DnsRecord> patches,
+            @Nullable List<DnsRecord> puts,
+            @Nullable List<DnsRecord> posts
+    ) {
+
+        @Override
+        public List<DnsRecord> deletes() {
+            return deletes != null ? deletes : List.of();
+        }
+
+        @Override
+        public List<DnsRecord> patches() {
+            return patches != null ? patches : List.of();
+        }
+
+        @Override
+        public List<DnsRecord> puts() {
+            return puts != null ? puts : List.of();
+        }
+
+        @Override
+        public List<DnsRecord> posts() {
+            return posts != null ? posts : List.of();
+        }
+    }
+}
@@ -1,9 +0,0 @@
-package net.covers1624.lp.cloudflare.data.dns;
-
-import net.covers1624.lp.cloudflare.data.CloudflareResponse;
-
-/**
- * Created by covers1624 on 27/11/23.
- */
-public class CreateDNSRecordResponse extends CloudflareResponse<DnsRecord> {
-}
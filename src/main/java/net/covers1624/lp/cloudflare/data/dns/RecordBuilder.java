@@ -11,6 +11,8 @@ import java.util.List;
  */
 public class RecordBuilder {
 
+    // Only used when patching or overwriting a record in a batch.
+    public @Nullable String id;
     public @Nullable String content;
     public @Nullable String name;
     public boolean proxied;
@@ -19,6 +21,11 @@ public class RecordBuilder {
     public List<String> tags = new ArrayList<>();
     public int ttl = 0;
 
+    public RecordBuilder id(String id) {
+        this.id = id;
+        return this;
+    }
+
     public RecordBuilder content(String content) {
         this.content = content;
         return this;
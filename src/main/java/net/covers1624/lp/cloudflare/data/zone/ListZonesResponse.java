@@ -1,52 +1,73 @@
 package net.covers1624.lp.cloudflare.data.zone;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import net.covers1624.lp.cloudflare.data.CloudflareResponse;
+import net.covers1624.lp.util.JsonStreamUtils.ReadOnlyTypeAdapter;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.Date;
-import java.util.List;
+import java.io.IOException;
+
+import static net.covers1624.lp.util.JsonStreamUtils.nextString;
+import static net.covers1624.lp.util.JsonStreamUtils.nextStringOrNull;
 
 /**
  * Created by covers1624 on 6/11/23.
  */
 public class ListZonesResponse extends CloudflareResponse<ListZonesResponse.Zone> {
 
+    // We only need enough to address the zone, the rest is skipped.
+    @JsonAdapter (Zone.Adapter.class)
     public record Zone(
-            Account account,
-            @SerializedName ("activated_on") Date activatedOn,
-            @SerializedName ("created_on") Date createdOn,
-            @SerializedName ("development_mode") int developmentMode,
             String id,
-            Metadata meta,
-            @SerializedName ("modified_on") Date modifiedOn,
             String name,
-            @SerializedName ("original_dnshost") String originalDnsHost,
-            @SerializedName ("original_name_servers") List<String> originalNameservers,
-            @SerializedName ("original_registrar") String originalRegistrar,
-            Owner owner,
-            @SerializedName ("vanity_name_servers") List<String> vanityNameServers
+            @Nullable Account account
     ) {
-    }
 
-    public record Account(String id, String name) {
-    }
+        public static class Adapter extends ReadOnlyTypeAdapter<Zone> {
 
-    public record Metadata(
-            @SerializedName ("cdn_only") boolean cdnOnly,
-            @SerializedName ("custom_certificate_quota") int customCertificateQuota,
-            @SerializedName ("dns_only") boolean dnsOnly,
-            @SerializedName ("foundation_dns") boolean foundationDns,
-            @SerializedName ("page_rule_quota") int pageRuleQuota,
-            @SerializedName ("phishing_detected") boolean phishingDetected,
-            int step
-    ) {
+            @Override
+            public Zone read(JsonReader in) throws IOException {
+                String id = null;
+                String name = null;
+                Account account = null;
+                in.beginObject();
+                while (in.hasNext()) {
+                    switch (in.nextName()) {
+                        case "id" -> id = nextString(in, "id");
+                        case "name" -> name = nextString(in, "name");
+                        case "account" -> account = Account.read(in);
+                        default -> in.skipValue();
+                    }
+                }
+                in.endObject();
+                if (id == null || name == null) throw new JsonParseException("Zone is missing id or name.");
+                return new Zone(id, name, account);
+            }
+        }
     }
 
-    public record Owner(
-            String id,
-            String name,
-            String type
-    ) {
-    }
+    public record Account(@Nullable String id, @Nullable String name) {
 
+        private static @Nullable Account read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String id = null;
+            String name = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id" -> id = nextStringOrNull(in);
+                    case "name" -> name = nextStringOrNull(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Account(id, name);
+        }
+    }
 }
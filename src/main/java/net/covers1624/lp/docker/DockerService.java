@@ -6,6 +6,8 @@ import net.covers1624.lp.LabelProxy;
 import net.covers1624.lp.docker.data.ContainerSummary;
 import net.covers1624.lp.docker.data.DockerContainer;
 import net.covers1624.lp.docker.data.DockerNetwork;
+import net.covers1624.lp.metrics.Histogram;
+import net.covers1624.lp.metrics.Labelled;
 import net.covers1624.quack.gson.JsonUtils;
 import net.covers1624.quack.net.httpapi.WebBody;
 import net.covers1624.quack.net.httpapi.curl4j.Curl4jEngineRequest;
@@ -19,6 +21,7 @@ import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Supplier;
 
 /**
  * Created by covers1624 on 1/11/23.
@@ -28,18 +31,21 @@ public class DockerService {
     private static final Gson GSON = new Gson();
 
     private final Config config;
-    private final Curl4jHttpEngine httpEngine;
+    private final Supplier<Curl4jHttpEngine> httpEngine;
+    private final Labelled<Histogram> requestLatency;
 
-    public DockerService(LabelProxy proxy, Curl4jHttpEngine httpEngine) {
+    public DockerService(LabelProxy proxy, Supplier<Curl4jHttpEngine> httpEngine) {
         this.config = proxy.config;
         this.httpEngine = httpEngine;
+        requestLatency = proxy.metrics.histogram("labelproxy_docker_request_seconds", "Docker API request latency.", "op");
     }
 
     public @Nullable DockerNetwork inspectNetwork(String name) {
-        Curl4jEngineRequest request = httpEngine.newRequest()
+        Curl4jEngineRequest request = httpEngine.get().newRequest()
                 .method("GET", null)
                 .unixSocket(config.docker.socket)
                 .url("http://v1.25/networks/" + name);
+        long start = System.nanoTime();
         try (Curl4jEngineResponse resp = request.execute()) {
             if (resp.statusCode() == 404) return null;
 
@@ -49,11 +55,13 @@ public class DockerService {
             return JsonUtils.parse(GSON, body.open(), DockerNetwork.class);
         } catch (IOException ex) {
             throw new RuntimeException("Docker command failed.", ex);
+        } finally {
+            requestLatency.labels("inspect_network").observeSince(start);
         }
     }
 
     public DockerNetwork createNetwork(String name) {
-        Curl4jEngineRequest request = httpEngine.newRequest()
+        Curl4jEngineRequest request = httpEngine.get().newRequest()
                 .method("POST", jsonBody(Map.of(
                         "Name", name,
                         "CheckDuplicates", true,
@@ -61,6 +69,7 @@ public class DockerService {
                 )))
                 .unixSocket(config.docker.socket)
                 .url("http://v1.25/networks/create");
+        long start = System.nanoTime();
         try (Curl4jEngineResponse resp = request.execute()) {
             if (resp.statusCode() != 201) throw new IllegalStateException("Expected 201 response. Got: " + resp.statusCode());
 
@@ -73,14 +82,17 @@ public class DockerService {
             return Objects.requireNonNull(inspectNetwork(r.Id), "Inspect after create did not return a network?");
         } catch (IOException ex) {
             throw new RuntimeException("Docker command failed.", ex);
+        } finally {
+            requestLatency.labels("create_network").observeSince(start);
         }
     }
 
     public List<ContainerSummary> listContainers() {
-        Curl4jEngineRequest request = httpEngine.newRequest()
+        Curl4jEngineRequest request = httpEngine.get().newRequest()
                 .method("GET", null)
                 .unixSocket(config.docker.socket)
                 .url("http://v1.25/containers/json");
+        long start = System.nanoTime();
         try (Curl4jEngineResponse resp = request.execute()) {
             if (resp.statusCode() != 200) throw new IllegalStateException("Expected 200 response. Got: " + resp.statusCode());
 
@@ -90,14 +102,17 @@ public class DockerService {
             return JsonUtils.parse(GSON, body.open(), ContainerSummary.CONTAINER_LIST);
         } catch (IOException ex) {
             throw new RuntimeException("Docker command failed.", ex);
+        } finally {
+            requestLatency.labels("list_containers").observeSince(start);
         }
     }
 
     public @Nullable DockerContainer inspectContainer(String id) {
-        Curl4jEngineRequest request = httpEngine.newRequest()
+        Curl4jEngineRequest request = httpEngine.get().newRequest()
                 .method("GET", null)
                 .unixSocket(config.docker.socket)
                 .url("http://v1.25/containers/" + id + "/json");
+        long start = System.nanoTime();
         try (Curl4jEngineResponse resp = request.execute()) {
             if (resp.statusCode() == 404) return null;
             if (resp.statusCode() != 200) throw new IllegalStateException("Expected 200 response. Got: " + resp.statusCode());
@@ -108,16 +123,19 @@ public class DockerService {
             return JsonUtils.parse(GSON, body.open(), DockerContainer.class);
         } catch (IOException ex) {
             throw new RuntimeException("Docker command failed.", ex);
+        } finally {
+            requestLatency.labels("inspect_container").observeSince(start);
         }
     }
 
     public DockerContainer connectNetwork(String network, String container) {
-        Curl4jEngineRequest request = httpEngine.newRequest()
+        Curl4jEngineRequest request = httpEngine.get().newRequest()
                 .method("POST", jsonBody(Map.of(
                         "Container", container
                 )))
                 .unixSocket(config.docker.socket)
                 .url("http://v1.25/networks/" + network + "/connect");
+        long start = System.nanoTime();
         try (Curl4jEngineResponse resp = request.execute()) {
             if (resp.statusCode() != 200) {
                 throw new IllegalStateException("Expected 201 response. Got: " + resp.statusCode());
@@ -125,6 +143,8 @@ public class DockerService {
             return inspectContainer(container);
         } catch (IOException ex) {
             throw new RuntimeException("Docker command failed.", ex);
+        } finally {
+            requestLatency.labels("connect_network").observeSince(start);
         }
     }
 
@@ -1,22 +1,63 @@
 package net.covers1624.lp.docker.data;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import net.covers1624.lp.util.JsonStreamUtils.ReadOnlyTypeAdapter;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.List;
 import java.util.Map;
 
+import static net.covers1624.lp.util.JsonStreamUtils.*;
+
 /**
  * Created by covers1624 on 2/11/23.
  */
+@JsonAdapter (ContainerSummary.Adapter.class)
 public record ContainerSummary(
-        @SerializedName ("Id") String id,
-        @SerializedName ("Names") List<String> names,
-        @SerializedName ("Image") String image,
-        @SerializedName ("Created") Long created,
-        @SerializedName ("Labels") Map<String, String> labels
+        String id,
+        List<String> names,
+        @Nullable String image,
+        @Nullable Long created,
+        Map<String, String> labels
 ) {
 
     public static final Type CONTAINER_LIST = new TypeToken<List<ContainerSummary>>() { }.getType();
+
+    public static class Adapter extends ReadOnlyTypeAdapter<ContainerSummary> {
+
+        @Override
+        public ContainerSummary read(JsonReader in) throws IOException {
+            String id = null;
+            List<String> names = List.of();
+            String image = null;
+            Long created = null;
+            Map<String, String> labels = Map.of();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Id" -> id = nextString(in, "Id");
+                    case "Names" -> names = readStringList(in);
+                    case "Image" -> image = nextStringOrNull(in);
+                    case "Created" -> {
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                        } else {
+                            created = in.nextLong();
+                        }
+                    }
+                    case "Labels" -> labels = readStringMap(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            if (id == null) throw new JsonParseException("Container summary is missing Id.");
+            return new ContainerSummary(id, names, image, created, labels);
+        }
+    }
 }
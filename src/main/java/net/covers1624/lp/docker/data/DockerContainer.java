@@ -1,22 +1,31 @@
 package net.covers1624.lp.docker.data;
 
-import com.google.gson.annotations.SerializedName;
+import com.google.gson.JsonParseException;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import net.covers1624.lp.util.JsonStreamUtils.ReadOnlyTypeAdapter;
 import net.covers1624.quack.collection.FastStream;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
+import static net.covers1624.lp.util.JsonStreamUtils.*;
+
 /**
  * Created by covers1624 on 2/11/23.
  */
+@JsonAdapter (DockerContainer.Adapter.class)
 public record DockerContainer(
-        @SerializedName ("Id") String id,
-        @SerializedName ("Config") Config config,
-        @SerializedName ("NetworkSettings") NetworkSettings networkSettings
+        String id,
+        Config config,
+        NetworkSettings networkSettings
 ) {
 
     public record Config(
-            @SerializedName ("Labels") Map<String, String> labels
+            Map<String, String> labels
     ) {
 
         public boolean hasLabelWithPrefix(String prefix) {
@@ -33,19 +42,99 @@ public record DockerContainer(
                     .filter(e->e.getKey().startsWith(prefix))
                     .toLinkedHashMap(Map.Entry::getKey, Map.Entry::getValue);
         }
+
+        private static Config read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return new Config(Map.of());
+            }
+            Map<String, String> labels = Map.of();
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("Labels")) {
+                    labels = readStringMap(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Config(labels);
+        }
     }
 
     public record NetworkSettings(
-            @SerializedName ("Networks") Map<String, Network> networks
+            Map<String, Network> networks
     ) {
+
+        private static NetworkSettings read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return new NetworkSettings(Map.of());
+            }
+            Map<String, Network> networks = Map.of();
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("Networks")) {
+                    networks = readMap(in, Network::read);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new NetworkSettings(networks);
+        }
     }
 
     public record Network(
-            @SerializedName ("Aliases") List<String> aliases,
-            @SerializedName ("NetworkId") String networkId,
-            @SerializedName ("EndpointId") String endpointId,
-            @SerializedName ("Gateway") String gateway,
-            @SerializedName ("IPAddress") String ipAddress
+            List<String> aliases,
+            @Nullable String networkId,
+            @Nullable String endpointId,
+            @Nullable String gateway,
+            @Nullable String ipAddress
     ) {
+
+        private static Network read(JsonReader in) throws IOException {
+            List<String> aliases = List.of();
+            String networkId = null;
+            String endpointId = null;
+            String gateway = null;
+            String ipAddress = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Aliases" -> aliases = readStringList(in);
+                    case "NetworkID" -> networkId = nextStringOrNull(in);
+                    case "EndpointID" -> endpointId = nextStringOrNull(in);
+                    case "Gateway" -> gateway = nextStringOrNull(in);
+                    case "IPAddress" -> ipAddress = nextStringOrNull(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Network(aliases, networkId, endpointId, gateway, ipAddress);
+        }
+    }
+
+    // Container inspect responses are large and polled constantly, only read what we need.
+    public static class Adapter extends ReadOnlyTypeAdapter<DockerContainer> {
+
+        @Override
+        public DockerContainer read(JsonReader in) throws IOException {
+            String id = null;
+            Config config = new Config(Map.of());
+            NetworkSettings networkSettings = new NetworkSettings(Map.of());
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "Id" -> id = nextString(in, "Id");
+                    case "Config" -> config = Config.read(in);
+                    case "NetworkSettings" -> networkSettings = NetworkSettings.read(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            if (id == null) throw new JsonParseException("Container is missing Id.");
+            return new DockerContainer(id, config, networkSettings);
+        }
     }
 }
@@ -0,0 +1,20 @@
+package net.covers1624.lp.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * A single step of ordering a certificate.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@Name ("net.covers1624.lp.AcmeStep")
+@Label ("ACME Step")
+@Category ({ "LabelProxy", "LetsEncrypt" })
+public final class AcmeStepEvent extends Event {
+
+    @Label ("Host")
+    public String host;
+
+    @Label ("Step")
+    public String step;
+}
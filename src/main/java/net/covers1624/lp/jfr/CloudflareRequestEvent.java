@@ -0,0 +1,27 @@
+package net.covers1624.lp.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * A single attempt at a Cloudflare API request.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@Name ("net.covers1624.lp.CloudflareRequest")
+@Label ("Cloudflare Request")
+@Category ({ "LabelProxy", "Cloudflare" })
+public final class CloudflareRequestEvent extends Event {
+
+    @Label ("Method")
+    public String method;
+
+    @Label ("Url")
+    public String url;
+
+    @Label ("Attempt")
+    public int attempt;
+
+    @Label ("Status")
+    @Description ("The http status code, -1 if the request failed to send.")
+    public int status = -1;
+}
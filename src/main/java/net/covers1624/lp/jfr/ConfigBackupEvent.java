@@ -0,0 +1,17 @@
+package net.covers1624.lp.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Zipping up the current nginx configs.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@Name ("net.covers1624.lp.ConfigBackup")
+@Label ("Config Backup")
+@Category ({ "LabelProxy", "Nginx" })
+public final class ConfigBackupEvent extends Event {
+
+    @Label ("Backup")
+    public String backup;
+}
@@ -0,0 +1,20 @@
+package net.covers1624.lp.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Parsing the LabelProxy labels of a container.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@Name ("net.covers1624.lp.ConfigParse")
+@Label ("Config Parse")
+@Category ({ "LabelProxy", "Docker" })
+public final class ConfigParseEvent extends Event {
+
+    @Label ("Container Id")
+    public String containerId;
+
+    @Label ("Configurations")
+    public int configurations;
+}
@@ -0,0 +1,17 @@
+package net.covers1624.lp.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Rendering the nginx config for a host.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@Name ("net.covers1624.lp.ConfigRender")
+@Label ("Config Render")
+@Category ({ "LabelProxy", "Nginx" })
+public final class ConfigRenderEvent extends Event {
+
+    @Label ("Host")
+    public String host;
+}
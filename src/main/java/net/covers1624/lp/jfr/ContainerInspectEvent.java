@@ -0,0 +1,17 @@
+package net.covers1624.lp.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Inspecting a single container during a scan.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@Name ("net.covers1624.lp.ContainerInspect")
+@Label ("Container Inspect")
+@Category ({ "LabelProxy", "Docker" })
+public final class ContainerInspectEvent extends Event {
+
+    @Label ("Container Id")
+    public String containerId;
+}
@@ -0,0 +1,20 @@
+package net.covers1624.lp.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * A full scan of docker for container changes.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@Name ("net.covers1624.lp.ContainerScan")
+@Label ("Container Scan")
+@Category ({ "LabelProxy", "Docker" })
+public final class ContainerScanEvent extends Event {
+
+    @Label ("Containers")
+    public int containers;
+
+    @Label ("Modified")
+    public boolean modified;
+}
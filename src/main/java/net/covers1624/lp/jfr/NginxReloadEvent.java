@@ -0,0 +1,21 @@
+package net.covers1624.lp.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Signaling nginx to reload its configs.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@Name ("net.covers1624.lp.NginxReload")
+@Label ("Nginx Reload")
+@Category ({ "LabelProxy", "Nginx" })
+public final class NginxReloadEvent extends Event {
+
+    @Label ("Hosts")
+    @Description ("The hosts which triggered the reload.")
+    public String hosts;
+
+    @Label ("Success")
+    public boolean success;
+}
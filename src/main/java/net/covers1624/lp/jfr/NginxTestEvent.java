@@ -0,0 +1,21 @@
+package net.covers1624.lp.jfr;
+
+import jdk.jfr.*;
+
+/**
+ * Running 'nginx -t' to test the configs.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+@Name ("net.covers1624.lp.NginxTest")
+@Label ("Nginx Test")
+@Category ({ "LabelProxy", "Nginx" })
+public final class NginxTestEvent extends Event {
+
+    @Label ("Hosts")
+    @Description ("The hosts which triggered the test.")
+    public String hosts;
+
+    @Label ("Success")
+    public boolean success;
+}
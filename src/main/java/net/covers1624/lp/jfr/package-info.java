@@ -0,0 +1,4 @@
+@NonNullApi
+package net.covers1624.lp.jfr;
+
+import net.covers1624.quack.annotation.NonNullApi;
@@ -0,0 +1,407 @@
+package net.covers1624.lp.letsencrypt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.covers1624.lp.letsencrypt.LetsEncryptService.CertInfo;
+import net.covers1624.quack.gson.JsonUtils;
+import net.covers1624.quack.util.SneakyUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.VisibleForTesting;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+import static net.covers1624.lp.logging.Markers.DISCORD;
+
+/**
+ * In-memory index of issued certificates.
+ * <p>
+ * Reads are lock-free. Everything is persisted to a single append-only
+ * index file, one json entry per line, which is replayed on startup and
+ * compacted once it accumulates enough stale entries. All disk writes
+ * happen on a single writer thread, last used timestamps are only kept
+ * in memory and periodically flushed in batches.
+ * <p>
+ * Issuance directories no longer referenced by the index are garbage
+ * collected in the background.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+class CertIndex {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Date.class, new EpochDateAdapter())
+            .create();
+
+    // How often dirty last used timestamps are flushed to the index.
+    private static final long FLUSH_INTERVAL_SECONDS = 30;
+    // How often we look for orphaned issuance directories.
+    private static final long GC_INTERVAL_HOURS = 24;
+    // Directories must have been orphaned for at least this long before they are deleted.
+    // Nginx may still reference the previous certificate for a short time after a renewal.
+    private static final Duration GC_GRACE = Duration.ofDays(1);
+
+    private final ScheduledExecutorService WRITER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("CertIndex Writer").build());
+
+    private final Path certsDir;
+    private final Path indexFile;
+    private final InstantSource clock;
+
+    private final Map<String, CertInfo> certs = new ConcurrentHashMap<>();
+    private final Map<String, Instant> lastUsed = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    // Issuance directory -> when we noticed it was no longer referenced. Only kept in memory,
+    // after a restart the grace period starts over, which only ever delays deletion.
+    private final Map<Path, Instant> orphanedSince = new ConcurrentHashMap<>();
+
+    // Number of entries in the index file, only touched by the writer thread after load.
+    private int entries;
+
+    CertIndex(Path certsDir) {
+        this(certsDir, InstantSource.system());
+    }
+
+    CertIndex(Path certsDir, InstantSource clock) {
+        this.certsDir = certsDir;
+        this.clock = clock;
+        indexFile = certsDir.resolve("index.jsonl");
+    }
+
+    void load() {
+        boolean corrupt = false;
+        if (Files.exists(indexFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) continue;
+                    entries++;
+                    Entry entry;
+                    try {
+                        entry = GSON.fromJson(line, Entry.class);
+                    } catch (JsonParseException ex) {
+                        // Most likely a torn write from a crash.
+                        LOGGER.warn("Skipping corrupt certificate index entry: {}", line, ex);
+                        corrupt = true;
+                        continue;
+                    }
+                    if (entry == null || entry.op == null) {
+                        LOGGER.warn("Skipping certificate index entry without an operation: {}", line);
+                        corrupt = true;
+                        continue;
+                    }
+                    replay(entry);
+                }
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to read certificate index.", ex);
+            }
+        } else if (Files.exists(certsDir)) {
+            migrateLegacy();
+        }
+        lastUsed.keySet().retainAll(certs.keySet());
+
+        if (corrupt || entries > certs.size() * 2 + 16) {
+            WRITER.execute(this::compact);
+        }
+        WRITER.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        WRITER.scheduleWithFixedDelay(this::collectGarbage, 0, GC_INTERVAL_HOURS, TimeUnit.HOURS);
+    }
+
+    private void replay(Entry entry) {
+        switch (entry.op) {
+            case PUT -> {
+                if (entry.cert != null) {
+                    certs.put(entry.cert.host(), entry.cert);
+                }
+            }
+            case REMOVE -> {
+                if (entry.host != null) {
+                    certs.remove(entry.host);
+                    lastUsed.remove(entry.host);
+                }
+            }
+            case USED -> {
+                if (entry.host != null) {
+                    lastUsed.put(entry.host, Instant.ofEpochMilli(entry.time));
+                }
+            }
+        }
+    }
+
+    // Import the old one json file per host format.
+    private void migrateLegacy() {
+        List<Path> legacy = new ArrayList<>();
+        try (Stream<Path> files = Files.list(certsDir)) {
+            for (Path path : files.toList()) {
+                if (!path.toString().endsWith(".json")) continue;
+                CertInfo info = JsonUtils.parse(LetsEncryptService.GSON, path, CertInfo.class);
+                certs.put(info.host(), info);
+                legacy.add(path);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to parse legacy certs.", ex);
+        }
+        if (legacy.isEmpty()) return;
+
+        LOGGER.info("Migrating {} certificates to the certificate index.", legacy.size());
+        replayLegacyJournal();
+        compact();
+        try {
+            for (Path path : legacy) {
+                Files.delete(path);
+            }
+            Files.deleteIfExists(certsDir.resolve("lastUsed.journal"));
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to delete legacy certs.", ex);
+        }
+    }
+
+    // The old last used journal, one 'host epochMillis' per line.
+    private void replayLegacyJournal() {
+        Path journal = certsDir.resolve("lastUsed.journal");
+        if (Files.notExists(journal)) return;
+
+        try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.lastIndexOf(' ');
+                // Torn write from a crash, ignore.
+                if (space == -1) continue;
+                try {
+                    lastUsed.put(line.substring(0, space), Instant.ofEpochMilli(Long.parseLong(line.substring(space + 1))));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to read legacy last used journal. Ignoring.", ex);
+        }
+        lastUsed.keySet().retainAll(certs.keySet());
+    }
+
+    @Nullable
+    CertInfo get(String host) {
+        return certs.get(host);
+    }
+
+    Collection<CertInfo> values() {
+        return Collections.unmodifiableCollection(certs.values());
+    }
+
+    @Nullable
+    Instant getLastUsed(String host) {
+        return lastUsed.get(host);
+    }
+
+    /**
+     * Record that the certificate for the given host was just used.
+     * <p>
+     * This is only recorded in memory, it will be flushed to disk later.
+     *
+     * @param host The host.
+     */
+    void markUsed(String host) {
+        lastUsed.put(host, clock.instant());
+        dirty.add(host);
+    }
+
+    /**
+     * Add or replace the certificate for a host.
+     *
+     * @param info The certificate.
+     * @return A future completed once the certificate has been persisted.
+     */
+    CompletableFuture<Void> put(CertInfo info) {
+        CertInfo previous = certs.put(info.host(), info);
+        if (previous != null) {
+            markOrphaned(previous);
+        }
+        markUsed(info.host());
+        return CompletableFuture.runAsync(() -> append(List.of(new Entry(Op.PUT, null, info, 0))), WRITER);
+    }
+
+    /**
+     * Remove the certificate for a host.
+     * <p>
+     * The issuance directory will be cleaned up by the next garbage collection.
+     *
+     * @param info The certificate.
+     * @return A future completed once the removal has been persisted.
+     */
+    CompletableFuture<Void> remove(CertInfo info) {
+        // A newer certificate was put in the meantime, it must survive replay.
+        if (!certs.remove(info.host(), info)) return CompletableFuture.completedFuture(null);
+        markOrphaned(info);
+
+        lastUsed.remove(info.host());
+        dirty.remove(info.host());
+        return CompletableFuture.runAsync(() -> append(List.of(new Entry(Op.REMOVE, info.host(), null, 0))), WRITER);
+    }
+
+    private void markOrphaned(CertInfo info) {
+        orphanedSince.putIfAbsent(issuanceDir(info), clock.instant());
+    }
+
+    private static Path issuanceDir(CertInfo info) {
+        return info.cert().getParent().toAbsolutePath().normalize();
+    }
+
+    private void append(List<Entry> toWrite) {
+        try (BufferedWriter writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Entry entry : toWrite) {
+                writer.write(GSON.toJson(entry));
+                writer.newLine();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        entries += toWrite.size();
+        if (entries > certs.size() * 2 + 16) {
+            compact();
+        }
+    }
+
+    private void flush() {
+        if (dirty.isEmpty()) return;
+
+        List<String> hosts = new ArrayList<>(dirty);
+        dirty.removeAll(hosts);
+        List<Entry> toWrite = new ArrayList<>(hosts.size());
+        for (String host : hosts) {
+            Instant used = lastUsed.get(host);
+            if (used == null) continue;
+            toWrite.add(new Entry(Op.USED, host, null, used.toEpochMilli()));
+        }
+        try {
+            append(toWrite);
+        } catch (UncheckedIOException ex) {
+            // Try again next flush.
+            dirty.addAll(hosts);
+            LOGGER.warn(DISCORD, "Failed to flush certificate last used times.", ex);
+        }
+    }
+
+    private void compact() {
+        LOGGER.info("Compacting certificate index.");
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        int written = 0;
+        try {
+            Files.createDirectories(certsDir);
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                for (CertInfo info : certs.values()) {
+                    writer.write(GSON.toJson(new Entry(Op.PUT, null, info, 0)));
+                    writer.newLine();
+                    written++;
+                    Instant used = lastUsed.get(info.host());
+                    if (used != null) {
+                        writer.write(GSON.toJson(new Entry(Op.USED, info.host(), null, used.toEpochMilli())));
+                        writer.newLine();
+                        written++;
+                    }
+                }
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            entries = written;
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to compact certificate index.", ex);
+        }
+    }
+
+    @VisibleForTesting
+    void collectGarbage() {
+        if (Files.notExists(certsDir)) return;
+
+        Set<Path> live = new HashSet<>();
+        for (CertInfo info : certs.values()) {
+            live.add(issuanceDir(info));
+        }
+        Instant now = clock.instant();
+        Instant cutoff = now.minus(GC_GRACE);
+        int removed = 0;
+        try (Stream<Path> files = Files.list(certsDir)) {
+            Set<Path> orphaned = new HashSet<>();
+            for (Path dir : files.toList()) {
+                if (!Files.isDirectory(dir)) continue;
+                Path normalized = dir.toAbsolutePath().normalize();
+                if (live.contains(normalized)) continue;
+
+                orphaned.add(normalized);
+                // Directories we didn't see become orphaned, such as after a restart, start their grace period now.
+                Instant since = orphanedSince.computeIfAbsent(normalized, e -> now);
+                if (since.isAfter(cutoff)) continue;
+
+                deleteDirectory(dir);
+                orphanedSince.remove(normalized);
+                removed++;
+            }
+            orphanedSince.keySet().retainAll(orphaned);
+        } catch (IOException | UncheckedIOException ex) {
+            LOGGER.warn("Failed to garbage collect certificate directories.", ex);
+        }
+        if (removed != 0) {
+            LOGGER.info("Removed {} orphaned certificate directories.", removed);
+        }
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder())
+                    .forEach(e -> {
+                        try {
+                            Files.deleteIfExists(e);
+                        } catch (IOException ex) {
+                            SneakyUtils.throwUnchecked(ex);
+                        }
+                    });
+        }
+    }
+
+    private enum Op {
+        PUT,
+        REMOVE,
+        USED
+    }
+
+    private record Entry(Op op, @Nullable String host, @Nullable CertInfo cert, long time) {
+    }
+
+    // Dates are stored as epoch millis, the default Gson format is locale and JVM dependent.
+    private static class EpochDateAdapter extends TypeAdapter<Date> {
+
+        @Override
+        public void write(JsonWriter out, @Nullable Date value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                out.value(value.getTime());
+            }
+        }
+
+        @Override
+        public @Nullable Date read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return new Date(in.nextLong());
+        }
+    }
+}
@@ -1,76 +1,103 @@
 package net.covers1624.lp.letsencrypt;
 
 import net.covers1624.quack.io.IOUtils;
-import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Some simple garbage to run openssl and generate dhparam file.
  * <p>
+ * Generation happens in the background, the file is only replaced once openssl
+ * has finished. Until then, one of the RFC 7919 ffdhe groups can be used. openssl
+ * is run under {@code nice}, so it only gets CPU time nginx does not want.
+ * <p>
  * Created by covers1624 on 4/11/23.
  */
 public class DHParamGenerator extends Thread {
 
+    private static final int[] FFDHE_BITS = { 2048, 3072, 4096 };
+
     private final Path dhParam;
     private final int bits;
 
-    private final Object LOCK = new Object();
-    private @Nullable Throwable error;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
 
     DHParamGenerator(Path dhParam, int bits) {
         this.dhParam = dhParam;
         this.bits = bits;
+        setName("DHParam Generator");
+        setDaemon(true);
     }
 
     @Override
     public void run() {
         try {
+            Path tmp = IOUtils.makeParents(dhParam.resolveSibling(dhParam.getFileName() + ".tmp"));
             ProcessBuilder builder = new ProcessBuilder(
-                    "openssl", "dhparam", "-out", IOUtils.makeParents(dhParam).toAbsolutePath().toString(), String.valueOf(bits)
+                    "nice", "-n", "19", "openssl", "dhparam", "-out", tmp.toAbsolutePath().toString(), String.valueOf(bits)
             );
+            // OpenSSL writes progress to stderr, we don't care.
+            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            builder.redirectError(ProcessBuilder.Redirect.DISCARD);
             Process process = builder.start();
-            // OpenSSL writes to stderr
-            InputStream is = process.getErrorStream();
-            int n = 0;
-            while (process.isAlive()) {
-                try {
-                    int b = is.read();
-                    if (b == -1) break;
-                    if (b == '\n') n = 0;
-
-                    System.out.write(b);
-                    System.out.flush();
-                    if (++n == 80) {
-                        n = 0;
-                        System.out.println();
-                    }
-                } catch (IOException ignored) {
-                    break;
-                }
+            int ret = process.waitFor();
+            if (ret != 0) {
+                Files.deleteIfExists(tmp);
+                throw new IOException("openssl dhparam returned: " + ret);
             }
+            Files.move(tmp, dhParam, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            future.complete(null);
         } catch (Throwable ex) {
-            error = ex;
-        }
-
-        synchronized (LOCK) {
-            LOCK.notifyAll();
+            future.completeExceptionally(ex);
         }
     }
 
-    public void startAndWait() {
+    /**
+     * Start generating.
+     *
+     * @return A future completed once the dhparam file has been replaced.
+     */
+    public CompletableFuture<Void> startAsync() {
         start();
-        synchronized (LOCK) {
-            try {
-                LOCK.wait();
-            } catch (InterruptedException ex) {
-                throw new RuntimeException("Interrupted waiting", ex);
+        return future;
+    }
+
+    /**
+     * Get the smallest RFC 7919 ffdhe group at least as large as the requested size.
+     *
+     * @param bits The requested size.
+     * @return The group, as a PEM encoded dhparam file.
+     */
+    public static byte[] ffdheGroup(int bits) {
+        int group = FFDHE_BITS[FFDHE_BITS.length - 1];
+        for (int b : FFDHE_BITS) {
+            if (b >= bits) {
+                group = b;
+                break;
             }
         }
-        if (error != null) {
-            throw new RuntimeException("Failed to generate dhparam.", error);
+        try (InputStream is = DHParamGenerator.class.getResourceAsStream("/dhparam/ffdhe" + group + ".pem")) {
+            if (is == null) throw new RuntimeException("ffdhe" + group + " resource is missing.");
+            return is.readAllBytes();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to read ffdhe" + group + " resource.", ex);
+        }
+    }
+
+    /**
+     * @param content The content of a dhparam file.
+     * @return If the content is one of our built-in ffdhe groups.
+     */
+    public static boolean isFfdheGroup(byte[] content) {
+        for (int b : FFDHE_BITS) {
+            if (Arrays.equals(content, ffdheGroup(b))) return true;
         }
+        return false;
     }
 }
@@ -0,0 +1,74 @@
+package net.covers1624.lp.letsencrypt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.shredzone.acme4j.util.KeyPairUtils;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A small pool of pre-generated domain key pairs.
+ * <p>
+ * Keys are generated on a background thread, so certificate orders
+ * don't have to wait for key generation.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+class DomainKeyPool {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final String CURVE = "secp256r1";
+
+    private final ExecutorService GENERATOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Domain Key Generator").build());
+
+    private final BlockingQueue<KeyPair> pool;
+    private final int size;
+
+    DomainKeyPool(int size) {
+        this.size = size;
+        pool = new ArrayBlockingQueue<>(Math.max(1, size));
+    }
+
+    /**
+     * Start filling the pool in the background.
+     */
+    void start() {
+        refill();
+    }
+
+    /**
+     * Take a key pair from the pool.
+     * <p>
+     * If the pool is empty, a key pair will be generated inline.
+     *
+     * @return The key pair.
+     */
+    KeyPair take() {
+        KeyPair keyPair = pool.poll();
+        refill();
+        if (keyPair != null) return keyPair;
+
+        LOGGER.debug("Domain key pool empty, generating inline.");
+        return generate();
+    }
+
+    private void refill() {
+        if (size <= 0) return;
+
+        GENERATOR.execute(() -> {
+            while (pool.remainingCapacity() > 0) {
+                pool.offer(generate());
+            }
+        });
+    }
+
+    private static KeyPair generate() {
+        return KeyPairUtils.createECKeyPair(CURVE);
+    }
+}
@@ -8,9 +8,14 @@ import com.google.gson.annotations.JsonAdapter;
 import net.covers1624.lp.Config;
 import net.covers1624.lp.LabelProxy;
 import net.covers1624.lp.cloudflare.CloudflareService;
-import net.covers1624.lp.cloudflare.data.dns.CreateDNSRecordResponse;
+import net.covers1624.lp.cloudflare.data.dns.BatchBuilder;
+import net.covers1624.lp.cloudflare.data.dns.BatchDNSRecordsResponse;
 import net.covers1624.lp.cloudflare.data.dns.DnsRecord;
 import net.covers1624.lp.cloudflare.data.dns.RecordBuilder;
+import net.covers1624.lp.jfr.AcmeStepEvent;
+import net.covers1624.lp.metrics.Counter;
+import net.covers1624.lp.metrics.Histogram;
+import net.covers1624.lp.metrics.Labelled;
 import net.covers1624.lp.util.CryptoUtils;
 import net.covers1624.quack.collection.FastStream;
 import net.covers1624.quack.gson.JsonUtils;
@@ -18,6 +23,8 @@ import net.covers1624.quack.gson.PathTypeAdapter;
 import net.covers1624.quack.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.jetbrains.annotations.Nullable;
 import org.shredzone.acme4j.*;
 import org.shredzone.acme4j.challenge.Dns01Challenge;
 import org.shredzone.acme4j.exception.AcmeException;
@@ -29,20 +36,19 @@ import java.io.PrintWriter;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyPair;
+import java.security.Security;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.function.Supplier;
-import java.util.stream.Stream;
 
 import static net.covers1624.lp.cloudflare.data.dns.RecordType.TXT;
 import static net.covers1624.lp.logging.Markers.DISCORD;
@@ -53,23 +59,45 @@ import static net.covers1624.lp.logging.Markers.DISCORD;
 public class LetsEncryptService {
 
     private static final Logger LOGGER = LogManager.getLogger();
-    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
     private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LetsEncrypt Executor").build());
+    private static final ExecutorService RENEWAL_INFO_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("LetsEncrypt RenewalInfo").build());
 
-    private final Map<String, CertInfo> certs = new HashMap<>();
+    // Constructing the provider is slow, and only ACME needs it. Registered on first use.
+    private static final Supplier<Integer> BOUNCY_CASTLE = Suppliers.memoize(() -> Security.addProvider(new BouncyCastleProvider()));
+
+    // How often we re-query ARI for a certificate whose renewal window is still far away.
+    private static final Duration ARI_RECHECK = Duration.ofHours(6);
+    // How long we wait before re-trying a failed renewal.
+    private static final Duration RENEWAL_RETRY = Duration.ofHours(1);
+    // Used when we don't know when a certificate was issued.
+    private static final Duration DEFAULT_LIFETIME = Duration.ofDays(90);
+
+    private final CertIndex certs;
+    private final DomainKeyPool keyPool;
     private final Map<String, CompletableFuture<CertInfo>> pending = new HashMap<>();
 
+    // Renewals ordered by when they are due. Superseded entries are left in the queue
+    // and skipped when polled, scheduledRenewals holds the live entry for each host.
+    private final PriorityQueue<ScheduledRenewal> renewalQueue = new PriorityQueue<>(Comparator.comparing(ScheduledRenewal::at));
+    private final Map<String, ScheduledRenewal> scheduledRenewals = new HashMap<>();
+
     private final LabelProxy proxy;
     private final Config config;
     private final CloudflareService cloudflare;
 
     public final Path dhParam;
+    public final OcspStapler ocsp;
 
     private final Path cacheDir;
     private final Path certsDir;
     private final Session session;
     private final Supplier<Account> account;
 
+    // Seconds, issuance includes waiting for DNS propagation.
+    private final Histogram issueLatency = new Histogram(15, 30, 60, 90, 120, 180, 300, 600);
+    private final Labelled<Counter> issued;
+
     public LetsEncryptService(LabelProxy proxy, CloudflareService cloudflare) {
         this.proxy = proxy;
         this.config = proxy.config;
@@ -80,9 +108,10 @@ public class LetsEncryptService {
         cacheDir = config.letsEncrypt.dir;
         certsDir = cacheDir.resolve("certs");
         String staging = config.letsEncrypt.staging ? "staging" : "";
-        session = new Session("acme://letsencrypt.org/" + staging);
+        session = new Session(config.letsEncrypt.directoryUrl != null ? config.letsEncrypt.directoryUrl : "acme://letsencrypt.org/" + staging);
 
         account = Suppliers.memoize(() -> {
+            BOUNCY_CASTLE.get();
             Account account;
             Path accountJson = cacheDir.resolve("account.json");
             if (Files.exists(accountJson)) {
@@ -124,17 +153,18 @@ public class LetsEncryptService {
             return account;
         });
 
-        if (Files.exists(certsDir)) {
-            try (Stream<Path> files = Files.list(certsDir)) {
-                for (Path path : files.toList()) {
-                    if (!path.toString().endsWith(".json")) continue;
-                    CertInfo info = JsonUtils.parse(GSON, path, CertInfo.class);
-                    certs.put(info.host, info);
-                }
-            } catch (IOException ex) {
-                throw new RuntimeException("Failed to parse certs.", ex);
+        ocsp = new OcspStapler(proxy.httpEngine);
+        keyPool = new DomainKeyPool(config.letsEncrypt.keyPoolSize);
+        certs = new CertIndex(certsDir);
+
+        issued = proxy.metrics.counter("labelproxy_letsencrypt_orders_total", "Certificate orders, by result.", "result");
+        proxy.metrics.register("labelproxy_letsencrypt_order_seconds", "Time taken to order and receive a certificate.", issueLatency);
+        proxy.metrics.gauge("labelproxy_letsencrypt_pending_certificates", "Certificate orders currently in progress.", () -> {
+            synchronized (pending) {
+                return pending.size();
             }
-        }
+        });
+        proxy.metrics.gauge("labelproxy_letsencrypt_certificates", "Certificates currently held.", () -> certs.values().size());
     }
 
     public boolean validate() {
@@ -145,59 +175,175 @@ public class LetsEncryptService {
         return true;
     }
 
+    /**
+     * Load the certificate index from disk.
+     * <p>
+     * Must complete before {@link #setup} or any certificates are requested, otherwise
+     * cached certificates would be ordered again.
+     */
+    public void loadCertificates() {
+        certs.load();
+        // Spread the initial ARI checks out, so we don't hit the CA for every cert on startup.
+        for (CertInfo info : certs.values()) {
+            scheduleRenewal(info, Duration.ofSeconds(ThreadLocalRandom.current().nextLong(TimeUnit.HOURS.toSeconds(1))));
+        }
+    }
+
     public void setup() {
-        account.get();
         setupDHParam();
+        keyPool.start();
+        ocsp.start(certs::values, proxy.nginx::onStaplingUpdated);
+        // Only new orders need the account, cached certificates are served without it.
+        // Orders run on the same executor, so they just queue behind the login.
+        CompletableFuture.runAsync(account::get, EXECUTOR)
+                .exceptionally(ex -> {
+                    LOGGER.error(DISCORD, "Failed to login to LetsEncrypt. Will retry on the next order.", ex);
+                    return null;
+                });
     }
 
-    public void expiryScan() {
+    /**
+     * Process any renewals which are due.
+     * <p>
+     * This is cheap to call frequently, it only inspects the head of the renewal queue.
+     */
+    public void processRenewals() {
         Instant now = Instant.now();
-        Instant nextWeek = now
-                .plus(7, ChronoUnit.DAYS);
-        synchronized (certs) {
-            Set<CertInfo> toRemove = new HashSet<>();
-            for (CertInfo info : certs.values()) {
-                if (pending.containsKey(info.host)) continue;
-                if (!nextWeek.isAfter(info.expiresAt.toInstant())) continue;
-                if (!proxy.nginx.getActiveHosts().contains(info.host)) {
-                    if (now.isAfter(info.expiresAt.toInstant())) {
-                        toRemove.add(info);
-                    }
-                    continue;
+        List<ScheduledRenewal> due = new ArrayList<>();
+        synchronized (renewalQueue) {
+            ScheduledRenewal head;
+            while ((head = renewalQueue.peek()) != null && !head.at.isAfter(now)) {
+                renewalQueue.poll();
+                if (scheduledRenewals.get(head.host) != head) continue; // Superseded.
+
+                scheduledRenewals.remove(head.host);
+                due.add(head);
+            }
+        }
+
+        for (ScheduledRenewal renewal : due) {
+            CertInfo info = certs.get(renewal.host);
+            if (info == null) continue;
+            // Whatever is pending will re-schedule when it completes.
+            if (isPending(info.host)) continue;
+
+            if (!proxy.nginx.getActiveHosts().contains(info.host)) {
+                if (now.isAfter(info.expiresAt.toInstant())) {
+                    removeCertificate(info);
+                } else {
+                    // Keep an eye on it, in case the host comes back.
+                    Instant next = now.plus(RENEWAL_RETRY);
+                    scheduleRenewal(info.host, next.isAfter(info.expiresAt.toInstant()) ? info.expiresAt.toInstant() : next, renewal.ariCheck);
                 }
+                continue;
+            }
 
+            if (renewal.ariCheck) {
+                RENEWAL_INFO_EXECUTOR.execute(() -> checkRenewalInfo(info));
+            } else {
                 renewCertificate(info);
             }
-            for (CertInfo rem : toRemove) {
-                LOGGER.info(DISCORD, "Removing unused certificate for {}", rem);
-                try {
-                    rem.delete(certsDir);
-                    certs.remove(rem.host);
-                } catch (IOException ex) {
-                    LOGGER.error(DISCORD, "Failed to delete cert cache.", ex);
-                }
-            }
         }
     }
 
+    private void removeCertificate(CertInfo info) {
+        LOGGER.info(DISCORD, "Removing unused certificate for {}, last used {}", info, certs.getLastUsed(info.host));
+        certs.remove(info).exceptionally(ex -> {
+            LOGGER.error(DISCORD, "Failed to delete cert cache.", ex);
+            return null;
+        });
+    }
+
+    private boolean isPending(String host) {
+        synchronized (pending) {
+            return pending.containsKey(host);
+        }
+    }
+
+    /**
+     * Schedule the next renewal action for the given certificate.
+     * <p>
+     * Certificates issued by a CA which supports ARI will first check
+     * renewal info after {@code ariDelay}, otherwise they are scheduled
+     * directly at a jittered fraction of their lifetime.
+     *
+     * @param info     The certificate.
+     * @param ariDelay How long to wait before checking renewal info.
+     */
+    private void scheduleRenewal(CertInfo info, Duration ariDelay) {
+        if (info.location != null) {
+            scheduleRenewal(info.host, Instant.now().plus(ariDelay), true);
+        } else {
+            scheduleRenewal(info.host, lifetimeRenewalTime(info), false);
+        }
+    }
+
+    private void scheduleRenewal(String host, Instant at, boolean ariCheck) {
+        ScheduledRenewal renewal = new ScheduledRenewal(host, at, ariCheck);
+        synchronized (renewalQueue) {
+            scheduledRenewals.put(host, renewal);
+            renewalQueue.add(renewal);
+        }
+        LOGGER.debug("Scheduled {} for {} at {}", ariCheck ? "renewal info check" : "renewal", host, at);
+    }
+
+    private Instant lifetimeRenewalTime(CertInfo info) {
+        Instant notAfter = info.expiresAt.toInstant();
+        Instant notBefore = info.issuedAt != null ? info.issuedAt.toInstant() : notAfter.minus(DEFAULT_LIFETIME);
+        long lifetime = Duration.between(notBefore, notAfter).toMillis();
+        double jitter = (ThreadLocalRandom.current().nextDouble() * 2 - 1) * config.letsEncrypt.renewalJitter;
+        double fraction = Math.max(0, Math.min(1, config.letsEncrypt.renewalFraction + jitter));
+        return notBefore.plusMillis((long) (lifetime * fraction));
+    }
+
+    private void checkRenewalInfo(CertInfo info) {
+        RenewalInfo renewalInfo;
+        try {
+            renewalInfo = fetchRenewalInfo(info);
+        } catch (AcmeException | RuntimeException ex) {
+            LOGGER.warn("Failed to query renewal info for {}. Falling back to lifetime based renewal.", info.host, ex);
+            renewalInfo = null;
+        }
+        if (renewalInfo == null) {
+            scheduleRenewal(info.host, lifetimeRenewalTime(info), false);
+            return;
+        }
+
+        Instant now = Instant.now();
+        Instant start = renewalInfo.getSuggestedWindowStart();
+        Instant end = renewalInfo.getSuggestedWindowEnd();
+        if (start.isBefore(now)) start = now;
+        if (end.isBefore(start)) end = start;
+        Instant at = start.plusMillis(ThreadLocalRandom.current().nextLong(Duration.between(start, end).toMillis() + 1));
+
+        // Window is far away, it may move before then, check again later.
+        Instant recheck = now.plus(ARI_RECHECK);
+        if (at.isAfter(recheck)) {
+            scheduleRenewal(info.host, recheck, true);
+        } else {
+            scheduleRenewal(info.host, at, false);
+        }
+    }
+
+    private @Nullable RenewalInfo fetchRenewalInfo(CertInfo info) throws AcmeException {
+        if (info.location == null) return null;
+
+        Certificate certificate = account.get().getLogin().bindCertificate(info.location);
+        if (!certificate.hasRenewalInfo()) return null;
+
+        return certificate.getRenewalInfo();
+    }
+
     public CompletableFuture<CertInfo> getCertificates(String host) {
         return getCertificates(host, false);
     }
 
     public CompletableFuture<CertInfo> getCertificates(String host, boolean force) {
-        CertInfo ret;
         if (!force) {
-            synchronized (certs) {
-                ret = certs.get(host);
-                if (ret != null) {
-                    certs.put(host, ret);
-                    try {
-                        ret.save(certsDir);
-                    } catch (IOException ex) {
-                        LOGGER.warn(DISCORD, "Failed to update certificate cache with new lastUsed.", ex);
-                    }
-                    return CompletableFuture.completedFuture(ret);
-                }
+            CertInfo ret = certs.get(host);
+            if (ret != null) {
+                certs.markUsed(host);
+                return CompletableFuture.completedFuture(ret);
             }
         }
 
@@ -209,21 +355,23 @@ public class LetsEncryptService {
                 CertInfo info;
                 // Request the certificate.
                 try {
+                    long start = System.nanoTime();
                     try {
-                        info = requestCertificate(host);
+                        info = requestCertificate(host, force ? certs.get(host) : null);
+                        issued.labels("success").inc();
                     } catch (AcmeException | IOException ex) {
+                        issued.labels("failed").inc();
                         throw new RuntimeException("Failed to issue certificate", ex);
+                    } finally {
+                        issueLatency.observeSince(start);
                     }
-                    // Write our cache.
+                    // Update global certs index and write our cache.
                     try {
-                        info.save(certsDir);
-                    } catch (IOException ex) {
-                        throw new RuntimeException("Failed to write cache.");
-                    }
-                    // Update global certs map.
-                    synchronized (certs) {
-                        certs.put(host, info);
+                        certs.put(info).join();
+                    } catch (CompletionException ex) {
+                        throw new RuntimeException("Failed to write cache.", ex.getCause());
                     }
+                    scheduleRenewal(info, ARI_RECHECK);
                 } finally {
                     // Now we can nuke our future.
                     synchronized (pending) {
@@ -240,133 +388,200 @@ public class LetsEncryptService {
     private void renewCertificate(CertInfo info) {
         LOGGER.info(DISCORD, "Certificate for {} is about to expire. Renewing..", info.host);
         getCertificates(info.host, true)
-                .thenAcceptAsync(proxy.nginx::onRenewCertificates)
                 .exceptionally(ex -> {
+                    // Only retry failed issuance, a successful one has already scheduled its next renewal.
                     LOGGER.error(DISCORD, "Failed to regen certificates for {}", info.host, ex);
+                    scheduleRenewal(info.host, Instant.now().plus(RENEWAL_RETRY), false);
+                    return null;
+                })
+                .thenAcceptAsync(newInfo -> {
+                    if (newInfo == null) return;
+                    proxy.nginx.onRenewCertificates(newInfo);
+                })
+                .exceptionally(ex -> {
+                    LOGGER.error(DISCORD, "Failed to update nginx for renewed certificate {}", info.host, ex);
                     return null;
                 });
     }
 
-    private CertInfo requestCertificate(String host) throws AcmeException, IOException {
-        LOGGER.info(DISCORD, "Ordering new certificate for {}", host);
-        Order order = account.get().newOrder()
-                .domain(host)
-                .create();
-        for (Authorization auth : order.getAuthorizations()) {
-            boolean ret = handleDNSChallenge(auth, (Dns01Challenge) FastStream.of(auth.getChallenges())
-                    .filter(e -> e.getType().equals(Dns01Challenge.TYPE))
-                    .only());
-            if (!ret) {
-                throw new AcmeException("Failed Authorization.");
-            }
+    // Ends the previous step, if any, and begins the next.
+    private static AcmeStepEvent nextStep(@Nullable AcmeStepEvent prev, String host, String step) {
+        if (prev != null) prev.commit();
+
+        AcmeStepEvent event = new AcmeStepEvent();
+        event.host = host;
+        event.step = step;
+        event.begin();
+        return event;
+    }
+
+    private static String pem(PemWriter action) throws CertificateEncodingException {
+        StringWriter sw = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(sw)) {
+            action.write(writer);
         }
-        LOGGER.info("Authorized! Processing order..");
+        return sw.toString();
+    }
 
-        KeyPair domainKey = KeyPairUtils.createECKeyPair("secp256r1");
-        CSRBuilder[] csrBuilder = { null };
-        order.execute(domainKey, csr -> csrBuilder[0] = csr);
-        int waitSteps = 20;
+    private CertInfo requestCertificate(String host, @Nullable CertInfo previous) throws AcmeException, IOException {
+        BOUNCY_CASTLE.get();
+        AcmeStepEvent step = nextStep(null, host, "order");
         try {
-            while (order.getStatus() != Status.VALID && waitSteps-- > 0) {
-                if (order.getStatus() == Status.INVALID) {
-                    throw new AcmeException("Order Failed. " + order.getError().orElse(null));
-                }
+            LOGGER.info(DISCORD, "Ordering new certificate for {}", host);
+            Order order = account.get().newOrder()
+                    .domain(host)
+                    .create();
+            step = nextStep(step, host, "authorize");
+            if (!handleDNSChallenges(order.getAuthorizations())) {
+                throw new AcmeException("Failed Authorization.");
+            }
+            LOGGER.info("Authorized! Processing order..");
 
-                Thread.sleep(TimeUnit.SECONDS.toMillis(3));
-                order.update();
+            step = nextStep(step, host, "finalize");
+            KeyPair domainKey = null;
+            if (previous != null && config.letsEncrypt.reuseKeyOnRenewal) {
+                try {
+                    domainKey = CryptoUtils.readKeyPair(previous.privKey, previous.pubKey, "EC");
+                    LOGGER.info("Reusing existing key for {}", host);
+                } catch (IOException ex) {
+                    LOGGER.warn("Failed to read existing key for {}, using a new one.", host, ex);
+                }
             }
-            if (order.getStatus() != Status.VALID) {
-                throw new AcmeException("Failed Order, timeout reached..");
+            if (domainKey == null) {
+                domainKey = keyPool.take();
             }
-        } catch (InterruptedException ex) {
-            throw new AcmeException("Interrupted whilst waiting for order.", ex);
-        }
-        Certificate certificate = order.getCertificate();
-        LOGGER.info("Order succeeded!");
-
-        Path dir = certsDir.resolve(host + "-" + System.currentTimeMillis());
-        Files.createDirectories(dir);
-
-        Path csrFile = dir.resolve("domain.csr");
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(csrFile), true)) {
-            CryptoUtils.writePem(writer, csrBuilder[0].getEncoded(), "CERTIFICATE REQUEST");
-        }
-
-        Path privKeyFile = dir.resolve("privkey.pem");
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(privKeyFile), true)) {
-            CryptoUtils.writePem(writer, domainKey.getPrivate().getEncoded(), "PRIVATE KEY");
-        }
-
-        Path pubKeyFile = dir.resolve("pubkey.pem");
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(pubKeyFile), true)) {
-            CryptoUtils.writePem(writer, domainKey.getPublic().getEncoded(), "PUBLIC KEY");
-        }
-
-        List<X509Certificate> fullChain = certificate.getCertificateChain();
-        X509Certificate cert = fullChain.get(0);
-
-        Path certFile = dir.resolve("cert.pem");
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(certFile), true)) {
-            CryptoUtils.writePem(writer, cert.getEncoded(), "CERTIFICATE");
-        } catch (CertificateEncodingException ex) {
-            throw new RuntimeException("Failed to encode certificate?", ex);
-        }
+            KeyPair finalDomainKey = domainKey;
+            CSRBuilder[] csrBuilder = { null };
+            order.execute(finalDomainKey, csr -> csrBuilder[0] = csr);
+            int waitSteps = 20;
+            try {
+                while (order.getStatus() != Status.VALID && waitSteps-- > 0) {
+                    if (order.getStatus() == Status.INVALID) {
+                        throw new AcmeException("Order Failed. " + order.getError().orElse(null));
+                    }
 
-        Path chainFile = dir.resolve("chain.pem");
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(chainFile), true)) {
-            for (X509Certificate chainCert : fullChain) {
-                if (chainCert == cert) continue;
-                CryptoUtils.writePem(writer, chainCert.getEncoded(), "CERTIFICATE");
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(3));
+                    order.update();
+                }
+                if (order.getStatus() != Status.VALID) {
+                    throw new AcmeException("Failed Order, timeout reached..");
+                }
+            } catch (InterruptedException ex) {
+                throw new AcmeException("Interrupted whilst waiting for order.", ex);
+            }
+            step = nextStep(step, host, "download");
+            Certificate certificate = order.getCertificate();
+            LOGGER.info("Order succeeded!");
+
+            List<X509Certificate> fullChain = certificate.getCertificateChain();
+            X509Certificate cert = fullChain.get(0);
+
+            step = nextStep(step, host, "store");
+            // Render everything up front, so we can write it all in one pass.
+            byte[] csr = csrBuilder[0].getEncoded();
+            Map<String, String> files = new LinkedHashMap<>();
+            try {
+                files.put("domain.csr", pem(w -> CryptoUtils.writePem(w, csr, "CERTIFICATE REQUEST")));
+                files.put("privkey.pem", pem(w -> CryptoUtils.writePem(w, finalDomainKey.getPrivate().getEncoded(), "PRIVATE KEY")));
+                files.put("pubkey.pem", pem(w -> CryptoUtils.writePem(w, finalDomainKey.getPublic().getEncoded(), "PUBLIC KEY")));
+                files.put("cert.pem", pem(w -> CryptoUtils.writePem(w, cert.getEncoded(), "CERTIFICATE")));
+                files.put("chain.pem", pem(w -> {
+                    for (X509Certificate chainCert : fullChain) {
+                        if (chainCert == cert) continue;
+                        CryptoUtils.writePem(w, chainCert.getEncoded(), "CERTIFICATE");
+                    }
+                }));
+                files.put("fullchain.pem", pem(w -> {
+                    for (X509Certificate chainCert : fullChain) {
+                        CryptoUtils.writePem(w, chainCert.getEncoded(), "CERTIFICATE");
+                    }
+                }));
+            } catch (CertificateEncodingException ex) {
+                throw new RuntimeException("Failed to encode certificate?", ex);
             }
-        } catch (CertificateEncodingException ex) {
-            throw new RuntimeException("Failed to encode certificate?", ex);
-        }
 
-        Path fullChainFile = dir.resolve("fullchain.pem");
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(fullChainFile), true)) {
-            for (X509Certificate chainCert : fullChain) {
-                CryptoUtils.writePem(writer, chainCert.getEncoded(), "CERTIFICATE");
+            // Write into a staging directory, then atomically move it into place. Nothing
+            // will ever observe a partially written issuance.
+            String dirName = host + "-" + System.currentTimeMillis();
+            Path staging = certsDir.resolve(dirName + ".tmp");
+            Files.createDirectories(staging);
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                Files.writeString(staging.resolve(entry.getKey()), entry.getValue(), StandardCharsets.UTF_8);
             }
-        } catch (CertificateEncodingException ex) {
-            throw new RuntimeException("Failed to encode certificate?", ex);
+            Path dir = Files.move(staging, certsDir.resolve(dirName), StandardCopyOption.ATOMIC_MOVE);
+
+            return new CertInfo(
+                    host,
+                    cert.getNotAfter(),
+                    cert.getNotBefore(),
+                    certificate.getLocation(),
+                    dir.resolve("domain.csr"),
+                    dir.resolve("privkey.pem"),
+                    dir.resolve("pubkey.pem"),
+                    dir.resolve("cert.pem"),
+                    dir.resolve("chain.pem"),
+                    dir.resolve("fullchain.pem")
+            );
+        } finally {
+            step.commit();
         }
-
-        return new CertInfo(
-                host,
-                cert.getNotAfter(),
-                csrFile,
-                privKeyFile,
-                pubKeyFile,
-                certFile,
-                chainFile,
-                fullChainFile
-        );
     }
 
-    private boolean handleDNSChallenge(Authorization auth, Dns01Challenge challenge) throws AcmeException, IOException {
-        LOGGER.info("Handling DNS Challenge.");
-        if (challenge.getStatus() == Status.VALID) {
-            LOGGER.info(" Already valid.");
-            return true;
+    private boolean handleDNSChallenges(List<Authorization> auths) throws AcmeException, IOException {
+        LOGGER.info("Handling DNS Challenges.");
+        // Group all records by zone, so each zone costs a single request to create and delete.
+        Map<CloudflareService.ZoneInfo, BatchBuilder> creates = new LinkedHashMap<>();
+        List<Dns01Challenge> challenges = new ArrayList<>();
+        for (Authorization auth : auths) {
+            Dns01Challenge challenge = (Dns01Challenge) FastStream.of(auth.getChallenges())
+                    .filter(e -> e.getType().equals(Dns01Challenge.TYPE))
+                    .only();
+            String domain = auth.getIdentifier().getDomain();
+            if (challenge.getStatus() == Status.VALID) {
+                LOGGER.info(" {} already valid.", domain);
+                continue;
+            }
+            CloudflareService.ZoneInfo zone = cloudflare.getZoneInfo(domain);
+            creates.computeIfAbsent(zone, e -> new BatchBuilder())
+                    .post(new RecordBuilder()
+                            .ttl(60)
+                            .name(Dns01Challenge.toRRName(domain))
+                            .content(challenge.getDigest())
+                            .type(TXT)
+                    );
+            challenges.add(challenge);
         }
-        String domain = auth.getIdentifier().getDomain();
-        CloudflareService.ZoneInfo zone = cloudflare.getZoneInfo(domain);
-        LOGGER.info(" Creating CloudFlare DNS record..");
-        CreateDNSRecordResponse dnsRecordResponse = cloudflare.createDNSRecord(zone, new RecordBuilder()
-                .ttl(60)
-                .name(Dns01Challenge.toRRName(domain))
-                .content(challenge.getDigest())
-                .type(TXT)
-        );
-        LOGGER.info("Waiting for DNS to propagate.");
+        if (challenges.isEmpty()) return true;
+
+        Map<CloudflareService.ZoneInfo, List<DnsRecord>> created = new LinkedHashMap<>();
         try {
-            for (int i = 0; i < 60; i++) {
-                Thread.sleep(1000);
+            LOGGER.info(" Creating {} CloudFlare DNS records..", challenges.size());
+            for (Map.Entry<CloudflareService.ZoneInfo, BatchBuilder> entry : creates.entrySet()) {
+                BatchDNSRecordsResponse resp = cloudflare.batchDNSRecords(entry.getKey(), entry.getValue());
+                created.put(entry.getKey(), resp.batch().posts());
+            }
+            LOGGER.info("Waiting for DNS to propagate.");
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(config.letsEncrypt.dnsPropagationSeconds));
+            } catch (InterruptedException ex) {
+                LOGGER.error(DISCORD, "Interrupted whilst waiting for dns to propagate.");
+            }
+            for (Dns01Challenge challenge : challenges) {
+                challenge.trigger();
+            }
+            for (Dns01Challenge challenge : challenges) {
+                if (!awaitChallenge(challenge)) return false;
+            }
+        } finally {
+            LOGGER.info("Cleaning up records..");
+            for (Map.Entry<CloudflareService.ZoneInfo, List<DnsRecord>> entry : created.entrySet()) {
+                cloudflare.deleteDNSRecords(entry.getKey(), FastStream.of(entry.getValue()).map(DnsRecord::id).toList());
             }
-        } catch (InterruptedException ex) {
-            LOGGER.error(DISCORD, "Interrupted whilst waiting for dns to propagate.");
         }
-        challenge.trigger();
+        return true;
+    }
+
+    private boolean awaitChallenge(Dns01Challenge challenge) throws AcmeException {
         int waitSteps = 20;
         try {
             while (challenge.getStatus() != Status.VALID && waitSteps-- > 0) {
@@ -380,31 +595,44 @@ public class LetsEncryptService {
             }
             if (challenge.getStatus() != Status.VALID) {
                 LOGGER.error(DISCORD, " Failed DNS challenge. Timeout reached.");
+                return false;
             }
         } catch (InterruptedException ex) {
             LOGGER.error(DISCORD, " Interrupted whilst waiting for challenge.", ex);
             return false;
-        } finally {
-            LOGGER.info("Cleaning up records..");
-            for (DnsRecord dnsRecord : dnsRecordResponse.result) {
-                cloudflare.deleteDNSRecord(zone, dnsRecord.id());
-            }
         }
         return true;
     }
 
     private void setupDHParam() {
-        if (Files.exists(dhParam)) return;
-
-        LOGGER.info("dhparam missing. Generating, this may take a few minutes...");
+        try {
+            if (Files.notExists(dhParam)) {
+                // Generating takes minutes, start with a well known group so nginx can start immediately.
+                LOGGER.info("dhparam missing. Using built-in RFC 7919 ffdhe group.");
+                Files.write(IOUtils.makeParents(dhParam), DHParamGenerator.ffdheGroup(config.letsEncrypt.dhParamBits));
+            }
+            if (!config.letsEncrypt.generateDhParam || !DHParamGenerator.isFfdheGroup(Files.readAllBytes(dhParam))) return;
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to setup dhparam.", ex);
+        }
 
-        DHParamGenerator generator = new DHParamGenerator(dhParam, config.letsEncrypt.dhParamBits);
-        generator.startAndWait();
+        LOGGER.info("Generating custom dhparam in the background, this may take a while..");
+        new DHParamGenerator(dhParam, config.letsEncrypt.dhParamBits).startAsync().whenComplete((v, ex) -> {
+            if (ex != null) {
+                LOGGER.error(DISCORD, "Failed to generate dhparam. Continuing with built-in group.", ex);
+                return;
+            }
+            LOGGER.info("Custom dhparam generated.");
+            proxy.nginx.onDhParamUpdated();
+        });
     }
 
     public record CertInfo(
             String host,
             Date expiresAt,
+            // May be null for certificates issued by older versions.
+            @Nullable Date issuedAt,
+            @Nullable URL location,
             @JsonAdapter (PathTypeAdapter.class) Path csr,
             @JsonAdapter (PathTypeAdapter.class) Path privKey,
             @JsonAdapter (PathTypeAdapter.class) Path pubKey,
@@ -413,13 +641,20 @@ public class LetsEncryptService {
             @JsonAdapter (PathTypeAdapter.class) Path fullChain
     ) {
 
-        public void save(Path certsDir) throws IOException {
-            JsonUtils.write(GSON, certsDir.resolve(host + ".json"), this);
+        /**
+         * @return Where the cached OCSP response for this certificate is stored.
+         */
+        public Path ocspResponse() {
+            return cert.resolveSibling("ocsp.der");
         }
+    }
 
-        public void delete(Path certsDir) throws IOException {
-            Files.delete(certsDir.resolve(host + ".json"));
-        }
+    private interface PemWriter {
+
+        void write(PrintWriter writer) throws CertificateEncodingException;
+    }
+
+    private record ScheduledRenewal(String host, Instant at, boolean ariCheck) {
     }
 
     private record AccountJson(
@@ -0,0 +1,256 @@
+package net.covers1624.lp.letsencrypt;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.covers1624.lp.letsencrypt.LetsEncryptService.CertInfo;
+import net.covers1624.quack.net.httpapi.EngineRequest;
+import net.covers1624.quack.net.httpapi.EngineResponse;
+import net.covers1624.quack.net.httpapi.HttpEngine;
+import net.covers1624.quack.net.httpapi.WebBody;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.asn1.ASN1IA5String;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.cert.CertException;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.*;
+import org.bouncycastle.cert.ocsp.jcajce.JcaCertificateID;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Fetches and caches OCSP responses for our certificates, so nginx can
+ * staple them from disk via {@code ssl_stapling_file}.
+ * <p>
+ * Without this, every nginx worker fetches OCSP lazily on the first
+ * handshake after each reload.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class OcspStapler {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    // How often we check if any responses need refreshing.
+    private static final long CHECK_INTERVAL_MINUTES = 30;
+    // Used when a response does not specify nextUpdate.
+    private static final Duration DEFAULT_VALIDITY = Duration.ofDays(1);
+    // How long we wait before re-trying a failed fetch.
+    private static final Duration RETRY = Duration.ofHours(1);
+
+    private final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("OCSP Stapler").build());
+
+    private final Supplier<? extends HttpEngine> httpEngine;
+
+    // Keyed by certificate file, so renewed certificates get fresh state.
+    private final Map<Path, StapleState> states = new ConcurrentHashMap<>();
+
+    public OcspStapler(Supplier<? extends HttpEngine> httpEngine) {
+        this.httpEngine = httpEngine;
+    }
+
+    /**
+     * Start periodically refreshing OCSP responses.
+     *
+     * @param certs     Supplies the certificates to staple.
+     * @param onUpdated Called with the certificates whose responses changed on disk.
+     */
+    public void start(Supplier<Collection<CertInfo>> certs, Consumer<List<CertInfo>> onUpdated) {
+        SCHEDULER.scheduleWithFixedDelay(() -> {
+            try {
+                List<CertInfo> updated = refresh(certs.get());
+                if (!updated.isEmpty()) {
+                    onUpdated.accept(updated);
+                }
+            } catch (Throwable ex) {
+                LOGGER.error("Failed to refresh OCSP responses.", ex);
+            }
+        }, 0, CHECK_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param info The certificate.
+     * @return If the certificate advertises an OCSP responder. {@code null} if not yet known.
+     */
+    public @Nullable Boolean hasResponder(CertInfo info) {
+        StapleState state = states.get(info.cert());
+        return state != null ? state.responder != null : null;
+    }
+
+    private List<CertInfo> refresh(Collection<CertInfo> certs) {
+        Instant now = Instant.now();
+        List<CertInfo> updated = new ArrayList<>();
+        for (CertInfo info : certs) {
+            StapleState state = states.get(info.cert());
+            if (state == null) {
+                state = loadState(info);
+                states.put(info.cert(), state);
+            }
+            if (state.responder == null || state.refreshAt.isAfter(now)) continue;
+
+            try {
+                Instant refreshAt = fetch(info, state.responder);
+                state.refreshAt = refreshAt;
+                updated.add(info);
+                LOGGER.debug("Refreshed OCSP response for {}, next refresh at {}", info.host(), refreshAt);
+            } catch (IOException | GeneralSecurityException | OCSPException | OperatorCreationException | CertException ex) {
+                LOGGER.warn("Failed to fetch OCSP response for {}", info.host(), ex);
+                state.refreshAt = now.plus(RETRY);
+            }
+        }
+        // Forget about certificates which no longer exist.
+        Set<Path> live = new HashSet<>();
+        for (CertInfo info : certs) {
+            live.add(info.cert());
+        }
+        states.keySet().retainAll(live);
+        return updated;
+    }
+
+    private StapleState loadState(CertInfo info) {
+        try {
+            String responder = getResponderUrl(readCert(info.cert()));
+            Instant refreshAt = Instant.EPOCH;
+            // We may already have a response on disk from a previous run.
+            Path ocspFile = info.ocspResponse();
+            if (responder != null && Files.exists(ocspFile)) {
+                BasicOCSPResp basic = (BasicOCSPResp) new OCSPResp(Files.readAllBytes(ocspFile)).getResponseObject();
+                refreshAt = refreshTime(basic.getResponses()[0]);
+            }
+            return new StapleState(responder, refreshAt);
+        } catch (IOException | GeneralSecurityException | OCSPException | RuntimeException ex) {
+            LOGGER.warn("Failed to read certificate for OCSP stapling {}", info.host(), ex);
+            return new StapleState(null, Instant.EPOCH);
+        }
+    }
+
+    private Instant fetch(CertInfo info, String responder) throws IOException, GeneralSecurityException, OCSPException, OperatorCreationException, CertException {
+        X509Certificate cert = readCert(info.cert());
+        X509Certificate issuer = readCert(info.chain());
+
+        CertificateID id = new JcaCertificateID(
+                new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+                issuer,
+                cert.getSerialNumber()
+        );
+        OCSPReq ocspReq = new OCSPReqBuilder()
+                .addRequest(id)
+                .build();
+
+        byte[] respBytes;
+        EngineRequest request = httpEngine.get().newRequest()
+                .method("POST", WebBody.bytes(ocspReq.getEncoded(), "application/ocsp-request"))
+                .url(responder);
+        try (EngineResponse response = request.execute()) {
+            WebBody body = response.body();
+            if (response.statusCode() != 200 || body == null) {
+                throw new IOException("OCSP responder returned " + response.statusCode());
+            }
+            try (InputStream is = body.open()) {
+                respBytes = is.readAllBytes();
+            }
+        }
+
+        OCSPResp resp = new OCSPResp(respBytes);
+        if (resp.getStatus() != OCSPResp.SUCCESSFUL) {
+            throw new OCSPException("OCSP responder returned status " + resp.getStatus());
+        }
+        BasicOCSPResp basic = (BasicOCSPResp) resp.getResponseObject();
+        verifySignature(basic, issuer);
+
+        SingleResp single = null;
+        for (SingleResp r : basic.getResponses()) {
+            if (r.getCertID().equals(id)) {
+                single = r;
+                break;
+            }
+        }
+        if (single == null) throw new OCSPException("OCSP response does not contain our certificate.");
+        // Never staple anything but a good response, nginx would happily serve a revoked one.
+        if (single.getCertStatus() != CertificateStatus.GOOD) {
+            throw new OCSPException("Certificate status is not good: " + single.getCertStatus());
+        }
+
+        Path ocspFile = info.ocspResponse();
+        Path tmp = ocspFile.resolveSibling(ocspFile.getFileName() + ".tmp");
+        Files.write(tmp, respBytes);
+        Files.move(tmp, ocspFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return refreshTime(single);
+    }
+
+    private static void verifySignature(BasicOCSPResp basic, X509Certificate issuer) throws OCSPException, OperatorCreationException, CertException, GeneralSecurityException, IOException {
+        X509CertificateHolder issuerHolder = new JcaX509CertificateHolder(issuer);
+        X509CertificateHolder signer = issuerHolder;
+        X509CertificateHolder[] certs = basic.getCerts();
+        if (certs.length != 0) {
+            // Delegated responder, must be issued by our issuer.
+            signer = certs[0];
+            if (!signer.isSignatureValid(new JcaContentVerifierProviderBuilder().build(issuerHolder))) {
+                throw new OCSPException("Delegated OCSP responder certificate not signed by issuer.");
+            }
+        }
+        if (!basic.isSignatureValid(new JcaContentVerifierProviderBuilder().build(signer))) {
+            throw new OCSPException("Invalid OCSP response signature.");
+        }
+    }
+
+    // Refresh half way through the responses validity.
+    private static Instant refreshTime(SingleResp single) {
+        Instant thisUpdate = single.getThisUpdate().toInstant();
+        Instant nextUpdate = single.getNextUpdate() != null ? single.getNextUpdate().toInstant() : thisUpdate.plus(DEFAULT_VALIDITY);
+        return thisUpdate.plus(Duration.between(thisUpdate, nextUpdate).dividedBy(2));
+    }
+
+    private static X509Certificate readCert(Path path) throws IOException, GeneralSecurityException {
+        try (InputStream is = Files.newInputStream(path)) {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(is);
+        }
+    }
+
+    private static @Nullable String getResponderUrl(X509Certificate cert) throws IOException, GeneralSecurityException {
+        X509CertificateHolder holder = new X509CertificateHolder(cert.getEncoded());
+        AuthorityInformationAccess aia = AuthorityInformationAccess.fromExtensions(holder.getExtensions());
+        if (aia == null) return null;
+
+        for (AccessDescription desc : aia.getAccessDescriptions()) {
+            if (!desc.getAccessMethod().equals(AccessDescription.id_ad_ocsp)) continue;
+            GeneralName name = desc.getAccessLocation();
+            if (name.getTagNo() != GeneralName.uniformResourceIdentifier) continue;
+            return ASN1IA5String.getInstance(name.getName()).getString();
+        }
+        return null;
+    }
+
+    private static class StapleState {
+
+        private final @Nullable String responder;
+        private Instant refreshAt;
+
+        private StapleState(@Nullable String responder, Instant refreshAt) {
+            this.responder = responder;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
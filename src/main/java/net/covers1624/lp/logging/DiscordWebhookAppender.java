@@ -10,12 +10,17 @@ import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.appender.AbstractAppender;
 import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.message.Message;
 import org.jetbrains.annotations.VisibleForTesting;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.time.Duration;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 /**
  * Created by covers1624 on 14/1/24.
@@ -24,25 +29,45 @@ public class DiscordWebhookAppender extends AbstractAppender {
 
     private static final Logger LOGGER = LogManager.getLogger();
 
-    private static final int MAX_LEN = 2000;
+    // Discord limits, per message.
+    private static final int MAX_EMBEDS = 10;
+    private static final int MAX_EMBED_LEN = 4096;
+    private static final int MAX_TOTAL_LEN = 6000;
+    // Don't bother starting another embed with less space than this.
+    private static final int MIN_EMBED_LEN = 256;
+    private static final int MAX_ATTEMPTS = 5;
+    // Wait this long after the first message of a burst, so it can accumulate.
+    private static final long QUIET_PERIOD_MS = 500;
 
-    private final LinkedList<String> queue = new LinkedList<>();
+    private final MpscRingBuffer<LogEvent> buffer;
+    // Events rejected because the buffer was full, reported by the consumer.
+    private final AtomicLong dropped = new AtomicLong();
     private final Thread thread;
-    private final Object WAIT_LOCK = new Object();
+    private volatile boolean parked;
 
-    private final HttpEngine httpEngine;
+    private final WebhookSender sender;
     private final Config config;
 
-    private boolean running = true;
+    private volatile boolean running = true;
+    // Only touched by the consumer thread.
+    private boolean alertPending;
+    private final EventFolder folder;
 
     public DiscordWebhookAppender(
             Layout<? extends Serializable> layout,
-            HttpEngine httpEngine,
+            Supplier<? extends HttpEngine> httpEngine,
             Config config
     ) {
+        this(layout, config, webhook -> webhook.execute(httpEngine.get()));
+    }
+
+    @VisibleForTesting
+    DiscordWebhookAppender(Layout<? extends Serializable> layout, Config config, WebhookSender sender) {
         super("DiscordWebhookAppender", null, layout, false, Property.EMPTY_ARRAY);
-        this.httpEngine = httpEngine;
+        this.sender = sender;
         this.config = config;
+        buffer = new MpscRingBuffer<>(config.discord.queueCapacity);
+        folder = new EventFolder(Duration.ofSeconds(config.discord.foldWindowSeconds), System::nanoTime);
 
         thread = new Thread(this::runThread);
         thread.setName("DiscordWebhookAppender");
@@ -59,55 +84,158 @@ public class DiscordWebhookAppender extends AbstractAppender {
     public void stop() {
         super.stop();
         running = false;
-        synchronized (WAIT_LOCK) {
-            WAIT_LOCK.notifyAll();
-        }
+        LockSupport.unpark(thread);
     }
 
     private void runThread() {
+        // Formatted messages which have not been sent yet, only touched by this thread.
+        LinkedList<String> pending = new LinkedList<>();
+        boolean idle = true;
         while (running) {
-            synchronized (WAIT_LOCK) {
-                try {
-                    WAIT_LOCK.wait();
-                } catch (InterruptedException ignored) { }
+            pending.addAll(folder.expire());
+            if (pending.isEmpty() && buffer.isEmpty()) {
+                parked = true;
+                // Re-check after publishing that we are parked, or we may miss a wakeup.
+                if (buffer.isEmpty() && running) {
+                    // If we have folded events, we need to wake up to summarize them.
+                    long expiry = folder.nanosUntilExpiry();
+                    if (expiry == -1) {
+                        LockSupport.park(this);
+                    } else {
+                        LockSupport.parkNanos(this, expiry);
+                    }
+                }
+                parked = false;
+                idle = true;
+                continue;
             }
-            if (!running) break;
 
-            // Quiet period.
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException ignored) { }
+            // Only wait for a quiet period at the start of a burst, whilst we have
+            // a backlog we send back to back as long as Discord lets us.
+            if (idle) {
+                sleep(Duration.ofMillis(QUIET_PERIOD_MS));
+                idle = false;
+            }
 
-            String toSend;
-            synchronized (queue) {
-                if (queue.isEmpty()) continue;
-                toSend = fillBuffer(queue, MAX_LEN);
+            drain(pending);
+            if (pending.isEmpty()) continue;
+
+            send(pack(pending));
+        }
+    }
+
+    // Pack as many messages as Discord allows into the embeds of a single webhook.
+    private DiscordWebhook pack(LinkedList<String> pending) {
+        DiscordWebhook webhook = new DiscordWebhook(Objects.requireNonNull(config.discord.webhookUrl))
+                .setUsername(Objects.requireNonNull(config.discord.name));
+        // Mentions inside embeds don't notify anyone, they must be in the content.
+        if (alertPending && config.discord.alert.length != 0) {
+            StringBuilder sb = new StringBuilder();
+            for (long l : config.discord.alert) {
+                sb.append("<@").append(l).append("> ");
             }
+            webhook.setContent(sb.toString().strip());
+        }
+        alertPending = false;
+
+        int total = 0;
+        for (int i = 0; i < MAX_EMBEDS && !pending.isEmpty(); i++) {
+            int max = Math.min(MAX_EMBED_LEN, MAX_TOTAL_LEN - total);
+            if (max < MIN_EMBED_LEN && i != 0) break;
+
+            String description = fillBuffer(pending, max);
+            total += description.length();
+            webhook.addEmbed(new DiscordWebhook.Embed().setDescription(description));
+        }
+        return webhook;
+    }
+
+    private void send(DiscordWebhook webhook) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            DiscordWebhook.Response resp;
             try {
-                new DiscordWebhook(Objects.requireNonNull(config.discord.webhookUrl))
-                        .setUsername(Objects.requireNonNull(config.discord.name))
-                        .setContent(String.join("\n", toSend))
-                        .execute(httpEngine);
+                resp = sender.send(webhook);
             } catch (Throwable ex) {
                 LOGGER.error("Failed to send message to discord.", ex);
+                return;
             }
+            if (resp.isRateLimited()) {
+                sleep(Objects.requireNonNull(resp.retryAfter()));
+                continue;
+            }
+            // Out of budget, wait for the bucket to reset before the next batch.
+            if (resp.remaining() == 0 && resp.resetAfter() != null) {
+                sleep(resp.resetAfter());
+            }
+            return;
         }
+        LOGGER.error("Dropping message to discord, still rate limited after {} attempts.", MAX_ATTEMPTS);
     }
 
-    @Override
-    public void append(LogEvent event) {
-        StringBuilder sb = new StringBuilder();
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException ignored) { }
+    }
+
+    // Only take what the next message can hold. Anything else stays in the ring buffer,
+    // so a backlog is bounded by its capacity and overflow is counted as dropped.
+    private void drain(LinkedList<String> pending) {
+        int length = 0;
+        for (String str : pending) {
+            length += str.length();
+        }
+        LogEvent event;
+        while (length < MAX_TOTAL_LEN && (event = buffer.poll()) != null) {
+            EventFolder.Fingerprint fingerprint = fingerprint(event);
+            if (!folder.offer(fingerprint)) continue;
+
+            String formatted = format(event);
+            folder.setSummary(fingerprint, firstLine(formatted));
+            pending.add(formatted);
+            length += formatted.length();
+        }
+        long droppedCount = dropped.getAndSet(0);
+        if (droppedCount != 0) {
+            pending.add("Dropped " + droppedCount + " log messages, Discord could not keep up.");
+        }
+    }
+
+    private static EventFolder.Fingerprint fingerprint(LogEvent event) {
+        Message message = event.getMessage();
+        String template = message.getFormat();
+        if (template == null) {
+            template = message.getFormattedMessage();
+        }
+        Throwable thrown = event.getThrown();
+        return new EventFolder.Fingerprint(
+                event.getLoggerName(),
+                template,
+                thrown != null ? thrown.getClass().getName() : null
+        );
+    }
+
+    private static String firstLine(String str) {
+        int idx = str.indexOf('\n');
+        return idx == -1 ? str : str.substring(0, idx).stripTrailing();
+    }
+
+    private String format(LogEvent event) {
         if (event.getLevel().isMoreSpecificThan(Level.WARN)) {
-            for (long l : config.discord.alert) {
-                sb.append("<@").append(l).append("> ");
-            }
+            alertPending = true;
         }
-        sb.append(getLayout().toSerializable(event));
-        synchronized (queue) {
-            queue.add(sb.toString());
+        return String.valueOf(getLayout().toSerializable(event));
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        // Formatting happens on the consumer, the event may be reused once we return.
+        if (!buffer.offer(event.toImmutable())) {
+            dropped.incrementAndGet();
+            return;
         }
-        synchronized (WAIT_LOCK) {
-            WAIT_LOCK.notifyAll();
+        if (parked) {
+            LockSupport.unpark(thread);
         }
     }
 
@@ -148,4 +276,10 @@ public class DiscordWebhookAppender extends AbstractAppender {
         return len > maxLen;
     }
 
+    @VisibleForTesting
+    interface WebhookSender {
+
+        DiscordWebhook.Response send(DiscordWebhook webhook) throws IOException;
+    }
+
 }
@@ -0,0 +1,122 @@
+package net.covers1624.lp.logging;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Collapses repeated log events into periodic summaries.
+ * <p>
+ * Events are fingerprinted by logger, message template and exception type.
+ * The first event of a fingerprint is let through, repeats within the window
+ * are counted instead. When the window ends, a single summary is emitted
+ * and a new window starts, so a constantly repeating error costs one message
+ * per window rather than one per occurrence.
+ * <p>
+ * Not thread safe, only used by the appender's consumer thread.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+final class EventFolder {
+
+    // Beyond this many distinct fingerprints, new ones are never folded.
+    private static final int MAX_TRACKED = 1024;
+
+    private final long windowNanos;
+    private final String windowDesc;
+    private final LongSupplier clock;
+    private final Map<Fingerprint, Window> windows = new HashMap<>();
+
+    EventFolder(Duration window, LongSupplier clock) {
+        windowNanos = window.toNanos();
+        windowDesc = window.toSeconds() + "s";
+        this.clock = clock;
+    }
+
+    /**
+     * Offer an event.
+     *
+     * @param fingerprint The fingerprint of the event.
+     * @return {@code true} if the event should be sent, {@code false} if it was folded.
+     */
+    boolean offer(Fingerprint fingerprint) {
+        long now = clock.getAsLong();
+        Window window = windows.get(fingerprint);
+        if (window != null && now - window.start < windowNanos) {
+            window.repeats++;
+            return false;
+        }
+        if (window == null && windows.size() >= MAX_TRACKED) return true;
+
+        windows.put(fingerprint, new Window(now));
+        return true;
+    }
+
+    /**
+     * Set the summary line used for a fingerprint, should be called after
+     * {@link #offer} lets the event through.
+     */
+    void setSummary(Fingerprint fingerprint, String summary) {
+        Window window = windows.get(fingerprint);
+        if (window != null) {
+            window.summary = summary;
+        }
+    }
+
+    /**
+     * Close any windows which have ended.
+     *
+     * @return Summaries for windows which folded any events.
+     */
+    List<String> expire() {
+        if (windows.isEmpty()) return List.of();
+
+        long now = clock.getAsLong();
+        List<String> summaries = new ArrayList<>();
+        for (Iterator<Window> iterator = windows.values().iterator(); iterator.hasNext(); ) {
+            Window window = iterator.next();
+            if (now - window.start < windowNanos) continue;
+
+            if (window.repeats == 0) {
+                iterator.remove();
+                continue;
+            }
+            summaries.add(window.summary + " (x" + window.repeats + " in last " + windowDesc + ")");
+            // Keep folding, the next window only reports a summary.
+            window.start = now;
+            window.repeats = 0;
+        }
+        return summaries;
+    }
+
+    /**
+     * @return Nanoseconds until the next window with folded events ends, {@code -1} if none.
+     */
+    long nanosUntilExpiry() {
+        long now = clock.getAsLong();
+        long next = -1;
+        for (Window window : windows.values()) {
+            if (window.repeats == 0) continue;
+            long remaining = Math.max(0, window.start + windowNanos - now);
+            if (next == -1 || remaining < next) {
+                next = remaining;
+            }
+        }
+        return next;
+    }
+
+    record Fingerprint(String logger, String template, @Nullable String exceptionType) { }
+
+    private static final class Window {
+
+        private long start;
+        private int repeats;
+        private String summary = "";
+
+        private Window(long start) {
+            this.start = start;
+        }
+    }
+}
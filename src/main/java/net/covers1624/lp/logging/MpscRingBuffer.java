@@ -0,0 +1,101 @@
+package net.covers1624.lp.logging;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer single-consumer ring buffer.
+ * <p>
+ * Each slot carries a sequence number which tells producers and the
+ * consumer whose turn it is to use the slot, as described by Dmitry Vyukov.
+ * Producers only contend on a single CAS to claim a slot, they never block.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+final class MpscRingBuffer<T> {
+
+    private final int mask;
+    private final AtomicReferenceArray<T> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only touched by the consumer.
+    private long head;
+
+    /**
+     * @param capacity The minimum capacity, rounded up to a power of 2.
+     */
+    MpscRingBuffer(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive.");
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        buffer = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Add an element, safe to call from any thread.
+     *
+     * @param value The element.
+     * @return {@code false} if the buffer is full.
+     */
+    boolean offer(T value) {
+        long pos = tail.get();
+        while (true) {
+            int idx = (int) (pos & mask);
+            long diff = sequences.get(idx) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    buffer.lazySet(idx, value);
+                    // Publishes the element to the consumer.
+                    sequences.set(idx, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // The consumer has not freed this slot yet.
+                return false;
+            } else {
+                // Another producer claimed this slot.
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest element. Must only be called from the consumer thread.
+     *
+     * @return The element, or {@code null} if the buffer is empty.
+     */
+    @Nullable
+    T poll() {
+        int idx = (int) (head & mask);
+        if (sequences.get(idx) != head + 1) return null;
+
+        T value = buffer.get(idx);
+        buffer.lazySet(idx, null);
+        // Hand the slot back to producers for the next lap.
+        sequences.set(idx, head + mask + 1);
+        head++;
+        return value;
+    }
+
+    /**
+     * Must only be called from the consumer thread.
+     *
+     * @return If the buffer is empty.
+     */
+    boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+}
@@ -0,0 +1,88 @@
+package net.covers1624.lp.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of observed values, with fixed bucket upper bounds.
+ * <p>
+ * Recording is lock-free, reading may observe a slightly torn view
+ * across buckets, which is fine for metrics.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public final class Histogram {
+
+    // Seconds, suitable for network requests.
+    private static final double[] LATENCY_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    private final double[] bounds;
+    // One extra bucket for everything above the last bound.
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    public Histogram(double... bounds) {
+        this.bounds = bounds.clone();
+        Arrays.sort(this.bounds);
+        buckets = new LongAdder[this.bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return A new histogram with buckets suitable for latencies in seconds.
+     */
+    public static Histogram latency() {
+        return new Histogram(LATENCY_BUCKETS);
+    }
+
+    public void observe(double value) {
+        int idx = Arrays.binarySearch(bounds, value);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        buckets[idx].increment();
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Observe an elapsed time, in seconds.
+     *
+     * @param startNanos The start time from {@link System#nanoTime()}.
+     */
+    public void observeSince(long startNanos) {
+        observe((System.nanoTime() - startNanos) / 1_000_000_000D);
+    }
+
+    /**
+     * @return The upper bounds of each bucket.
+     */
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return The cumulative count of each bucket, the last element is the {@code +Inf} bucket.
+     */
+    public long[] getCumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,42 @@
+package net.covers1624.lp.metrics;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * A metric with labels, each unique set of label values gets its own child metric.
+ * <p>
+ * Callers on hot paths with fixed label values should hold on to the child.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public final class Labelled<T> {
+
+    final List<String> labelNames;
+    final Map<List<String>, T> children = new ConcurrentHashMap<>();
+    private final Supplier<T> factory;
+
+    Labelled(List<String> labelNames, Supplier<T> factory) {
+        this.labelNames = labelNames;
+        this.factory = factory;
+    }
+
+    /**
+     * Get the child metric for the given label values.
+     *
+     * @param values The label values, in the same order as the label names.
+     * @return The child metric.
+     */
+    public T labels(String... values) {
+        if (values.length != labelNames.size()) {
+            throw new IllegalArgumentException("Expected " + labelNames.size() + " label values, got " + values.length);
+        }
+        List<String> key = List.of(values);
+        T child = children.get(key);
+        if (child != null) return child;
+
+        return children.computeIfAbsent(key, e -> factory.get());
+    }
+}
@@ -0,0 +1,164 @@
+package net.covers1624.lp.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Holds all metrics, and renders them in the Prometheus text exposition format.
+ * <p>
+ * Registration may lock, recording into the returned metrics never does.
+ * Gauges are sampled when scraped, so cost nothing in between.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public final class MetricsRegistry {
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help) {
+        return counter(name, help, new String[0]).labels();
+    }
+
+    public Labelled<Counter> counter(String name, String help, String... labelNames) {
+        return family(name, help, Type.COUNTER, labelNames, Counter::new);
+    }
+
+    /**
+     * Register a histogram with buckets suitable for latencies, in seconds.
+     */
+    public Histogram histogram(String name, String help) {
+        return histogram(name, help, new String[0]).labels();
+    }
+
+    public Labelled<Histogram> histogram(String name, String help, String... labelNames) {
+        return family(name, help, Type.HISTOGRAM, labelNames, Histogram::latency);
+    }
+
+    /**
+     * Register a histogram with the given bucket upper bounds.
+     */
+    public Labelled<Histogram> histogram(String name, String help, double[] bounds, String... labelNames) {
+        return family(name, help, Type.HISTOGRAM, labelNames, () -> new Histogram(bounds));
+    }
+
+    /**
+     * Register a gauge, sampled from the given supplier on every scrape.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        registerExisting(name, help, Type.GAUGE, value);
+    }
+
+    /**
+     * Register an existing counter.
+     */
+    public void register(String name, String help, Counter counter) {
+        registerExisting(name, help, Type.COUNTER, counter);
+    }
+
+    /**
+     * Register an existing histogram.
+     */
+    public void register(String name, String help, Histogram histogram) {
+        registerExisting(name, help, Type.HISTOGRAM, histogram);
+    }
+
+    private <T> void registerExisting(String name, String help, Type type, T metric) {
+        T registered = this.<T>family(name, help, type, new String[0], () -> metric).labels();
+        if (registered != metric) {
+            throw new IllegalArgumentException("Metric " + name + " already registered with a different instance.");
+        }
+    }
+
+    @SuppressWarnings ("unchecked")
+    private <T> Labelled<T> family(String name, String help, Type type, String[] labelNames, Supplier<T> factory) {
+        Family family = families.computeIfAbsent(name, e -> new Family(help, type, new Labelled<>(List.of(labelNames), factory)));
+        if (family.type != type || !family.metrics.labelNames.equals(List.of(labelNames))) {
+            throw new IllegalArgumentException("Metric " + name + " already registered with a different type or labels.");
+        }
+        return (Labelled<T>) family.metrics;
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format, version 0.0.4.
+     *
+     * @param out The writer.
+     */
+    public void write(Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(escapeHelp(family.help)).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type.name().toLowerCase(Locale.ROOT)).append('\n');
+            List<String> labelNames = family.metrics.labelNames;
+            for (Map.Entry<List<String>, ?> child : family.metrics.children.entrySet()) {
+                List<String> values = child.getKey();
+                switch (family.type) {
+                    case COUNTER -> sample(sb, name, labelNames, values, null, null, ((Counter) child.getValue()).get());
+                    case GAUGE -> sample(sb, name, labelNames, values, null, null, ((DoubleSupplier) child.getValue()).getAsDouble());
+                    case HISTOGRAM -> {
+                        Histogram histogram = (Histogram) child.getValue();
+                        double[] bounds = histogram.getBounds();
+                        long[] counts = histogram.getCumulativeCounts();
+                        for (int i = 0; i < bounds.length; i++) {
+                            sample(sb, name + "_bucket", labelNames, values, "le", format(bounds[i]), counts[i]);
+                        }
+                        sample(sb, name + "_bucket", labelNames, values, "le", "+Inf", counts[counts.length - 1]);
+                        sample(sb, name + "_sum", labelNames, values, null, null, histogram.getSum());
+                        sample(sb, name + "_count", labelNames, values, null, null, counts[counts.length - 1]);
+                    }
+                }
+            }
+            out.write(sb.toString());
+            sb.setLength(0);
+        }
+    }
+
+    private static void sample(StringBuilder sb, String name, List<String> labelNames, List<String> values, String extraName, String extraValue, double value) {
+        sb.append(name);
+        if (!labelNames.isEmpty() || extraName != null) {
+            sb.append('{');
+            for (int i = 0; i < labelNames.size(); i++) {
+                if (i != 0) sb.append(',');
+                sb.append(labelNames.get(i)).append("=\"").append(escapeLabel(values.get(i))).append('"');
+            }
+            if (extraName != null) {
+                if (!labelNames.isEmpty()) sb.append(',');
+                sb.append(extraName).append("=\"").append(extraValue).append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        if (Double.isNaN(value)) return "NaN";
+        if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+        return Double.toString(value);
+    }
+
+    private static String escapeHelp(String str) {
+        return str.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String escapeLabel(String str) {
+        return str.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private enum Type {
+        COUNTER,
+        GAUGE,
+        HISTOGRAM
+    }
+
+    private record Family(String help, Type type, Labelled<?> metrics) { }
+}
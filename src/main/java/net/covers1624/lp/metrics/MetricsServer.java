@@ -0,0 +1,76 @@
+package net.covers1624.lp.metrics;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a {@link MetricsRegistry} over http for Prometheus to scrape.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class MetricsServer {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final MetricsRegistry registry;
+    private final InetSocketAddress address;
+    private @Nullable HttpServer server;
+
+    public MetricsServer(MetricsRegistry registry, InetSocketAddress address) {
+        this.registry = registry;
+        this.address = address;
+    }
+
+    public void start() throws IOException {
+        if (server != null) throw new IllegalStateException("Already started.");
+
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Metrics Server").build()));
+        server.start();
+        LOGGER.info("Serving metrics on http://{}:{}/metrics", address.getHostString(), server.getAddress().getPort());
+    }
+
+    public int getPort() {
+        if (server == null) throw new IllegalStateException("Not started.");
+
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringWriter sw = new StringWriter();
+            registry.write(sw);
+            byte[] bytes = sw.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        } catch (Throwable ex) {
+            LOGGER.warn("Failed to serve metrics.", ex);
+            throw ex;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package net.covers1624.lp.nginx;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.stream.JsonReader;
+import net.covers1624.lp.metrics.Counter;
+import net.covers1624.lp.metrics.Histogram;
+import net.covers1624.lp.metrics.Labelled;
+import net.covers1624.lp.metrics.MetricsRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incrementally tails the JSON access log written in {@link #LOG_FORMAT},
+ * feeding per-host request metrics.
+ * <p>
+ * The file channel is held open between polls. When the log is rotated, the
+ * rest of the old file is drained through the old channel before moving
+ * on to the new file, so no lines are lost or counted twice.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+final class AccessLogTailer {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * The nginx log_format we parse. Uses {@code $server_name} rather than {@code $host},
+     * so clients can't create new hosts with arbitrary Host headers.
+     */
+    static final String LOG_FORMAT = "escape=json '{"
+                                     + "\"host\":\"$server_name\","
+                                     + "\"status\":$status,"
+                                     + "\"bytes\":$body_bytes_sent,"
+                                     + "\"request_time\":$request_time,"
+                                     + "\"upstream_time\":\"$upstream_response_time\""
+                                     + "}'";
+
+    private static final String[] STATUS_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+    // Anything longer isn't something we wrote.
+    private static final int MAX_LINE = 16 * 1024;
+
+    private final Path path;
+    private final Labelled<Counter> requests;
+    private final Labelled<Counter> bytes;
+    private final Labelled<Histogram> requestTime;
+    private final Labelled<Histogram> upstreamTime;
+    private final Counter lines;
+    private final Counter malformed;
+    // Only touched by the polling thread.
+    private final Map<String, HostStats> hosts = new HashMap<>();
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private byte[] line = new byte[1024];
+    private int lineLen;
+    private boolean skipLine;
+
+    private @Nullable FileChannel channel;
+    private @Nullable Object fileKey;
+    private long offset;
+
+    private @Nullable ScheduledExecutorService scheduler;
+
+    AccessLogTailer(Path path, MetricsRegistry metrics) {
+        this.path = path;
+        requests = metrics.counter("labelproxy_http_requests_total", "Requests served by nginx, by host and status class.", "host", "status");
+        bytes = metrics.counter("labelproxy_http_response_bytes_total", "Response body bytes sent by nginx, by host.", "host");
+        requestTime = metrics.histogram("labelproxy_http_request_seconds", "Time nginx took to serve each request, by host.", "host");
+        upstreamTime = metrics.histogram("labelproxy_http_upstream_seconds", "Time spent waiting on upstreams for each request, by host.", "host");
+        lines = metrics.counter("labelproxy_access_log_lines_total", "Access log lines read.");
+        malformed = metrics.counter("labelproxy_access_log_malformed_total", "Access log lines which could not be parsed.");
+    }
+
+    void start() {
+        if (scheduler != null) throw new IllegalStateException("Already started.");
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Access Log Tailer").build());
+        scheduler.scheduleWithFixedDelay(() -> poll(false), 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Read any new lines.
+     *
+     * @param fromStart If the log should be read from the start when first opened,
+     *                  otherwise we skip whatever was logged before we started.
+     */
+    void poll(boolean fromStart) {
+        try {
+            if (channel == null && !open(fromStart)) return;
+
+            drain();
+            Object key = currentKey();
+            if (key == null) return;
+
+            if (!key.equals(fileKey)) {
+                // Rotated, the old file has just been drained, start on the new one.
+                close();
+                if (open(true)) {
+                    drain();
+                }
+            } else if (channel.size() < offset) {
+                // Truncated in place.
+                offset = 0;
+                lineLen = 0;
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to tail access log.", ex);
+            close();
+        }
+    }
+
+    private boolean open(boolean fromStart) throws IOException {
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+        fileKey = currentKey();
+        offset = fromStart ? 0 : channel.size();
+        lineLen = 0;
+        skipLine = false;
+        return true;
+    }
+
+    private @Nullable Object currentKey() throws IOException {
+        try {
+            // Not all file systems have file keys, fall back to the path, so we only detect truncation.
+            return Objects.requireNonNullElse(Files.readAttributes(path, BasicFileAttributes.class).fileKey(), path);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+    }
+
+    private void drain() throws IOException {
+        assert channel != null;
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) return;
+            offset += read;
+
+            byte[] array = buffer.array();
+            for (int i = 0; i < read; i++) {
+                byte b = array[i];
+                if (b == '\n') {
+                    if (!skipLine) {
+                        handleLine(new String(line, 0, lineLen, StandardCharsets.UTF_8));
+                    }
+                    lineLen = 0;
+                    skipLine = false;
+                } else if (!skipLine) {
+                    if (lineLen == MAX_LINE) {
+                        malformed.inc();
+                        skipLine = true;
+                        continue;
+                    }
+                    if (lineLen == line.length) {
+                        line = Arrays.copyOf(line, Math.min(MAX_LINE, line.length * 2));
+                    }
+                    line[lineLen++] = b;
+                }
+            }
+        }
+    }
+
+    private void handleLine(String str) {
+        lines.inc();
+        String host = null;
+        int status = -1;
+        long sent = 0;
+        double reqTime = -1;
+        double upTime = -1;
+        try (JsonReader reader = new JsonReader(new StringReader(str))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "host" -> host = reader.nextString();
+                    case "status" -> status = reader.nextInt();
+                    case "bytes" -> sent = reader.nextLong();
+                    case "request_time" -> reqTime = reader.nextDouble();
+                    case "upstream_time" -> upTime = parseUpstreamTime(reader.nextString());
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException | RuntimeException ex) {
+            malformed.inc();
+            return;
+        }
+        // Requests to the default server have no name.
+        if (host == null || host.isEmpty() || status == -1) return;
+
+        HostStats stats = hosts.computeIfAbsent(host, HostStats::new);
+        int statusClass = status / 100 - 1;
+        if (statusClass >= 0 && statusClass < STATUS_CLASSES.length) {
+            stats.statuses[statusClass].inc();
+        }
+        stats.bytes.add(sent);
+        if (reqTime >= 0) {
+            stats.requestTime.observe(reqTime);
+        }
+        if (upTime >= 0) {
+            stats.upstreamTime.observe(upTime);
+        }
+    }
+
+    /**
+     * Nginx logs one time per upstream tried, separated by {@code ,} or {@code :},
+     * and {@code -} when it never got a response. We want the total.
+     */
+    static double parseUpstreamTime(String str) {
+        double total = -1;
+        int start = 0;
+        while (start < str.length()) {
+            int end = start;
+            while (end < str.length() && str.charAt(end) != ',' && str.charAt(end) != ':') {
+                end++;
+            }
+            String part = str.substring(start, end).trim();
+            if (!part.isEmpty() && !part.equals("-")) {
+                try {
+                    total = Math.max(total, 0) + Double.parseDouble(part);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            start = end + 1;
+        }
+        return total;
+    }
+
+    private final class HostStats {
+
+        private final Counter[] statuses = new Counter[STATUS_CLASSES.length];
+        private final Counter bytes;
+        private final Histogram requestTime;
+        private final Histogram upstreamTime;
+
+        private HostStats(String host) {
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = requests.labels(host, STATUS_CLASSES[i]);
+            }
+            bytes = AccessLogTailer.this.bytes.labels(host);
+            requestTime = AccessLogTailer.this.requestTime.labels(host);
+            upstreamTime = AccessLogTailer.this.upstreamTime.labels(host);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package net.covers1624.lp.nginx;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The codecs rotated nginx logs can be compressed with.
+ * <p>
+ * All of these formats allow independently compressed streams to be concatenated,
+ * which {@link LogCompressor} relies on to compress blocks in parallel.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public enum LogCodec {
+    ZSTD("zst") {
+        @Override
+        OutputStream wrap(OutputStream os) throws IOException {
+            return new ZstdCompressorOutputStream(os);
+        }
+    },
+    GZIP("gz") {
+        @Override
+        OutputStream wrap(OutputStream os) throws IOException {
+            return new GZIPOutputStream(os, 64 * 1024);
+        }
+    },
+    BZIP2("bz2") {
+        @Override
+        OutputStream wrap(OutputStream os) throws IOException {
+            return new BZip2CompressorOutputStream(os);
+        }
+    };
+
+    public final String extension;
+
+    LogCodec(String extension) {
+        this.extension = extension;
+    }
+
+    abstract OutputStream wrap(OutputStream os) throws IOException;
+
+    /**
+     * Compress a block into a complete, standalone stream.
+     *
+     * @param block The block.
+     * @return The compressed bytes.
+     */
+    byte[] compress(byte[] block) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, block.length / 4));
+        try (OutputStream os = wrap(bos)) {
+            os.write(block);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,125 @@
+package net.covers1624.lp.nginx;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+
+/**
+ * Compresses rotated logs by splitting them into fixed size blocks, compressing each
+ * block on its own thread, and writing the resulting streams out in order.
+ * <p>
+ * The output is a concatenation of complete streams, which zstd, gzip and bzip2 all
+ * decompress transparently.
+ * <p>
+ * Thread priorities are ignored on Linux, so in background mode the only throttle we
+ * have is the worker count. Unless configured, it defaults to a quarter of the cores,
+ * leaving the rest for nginx.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+final class LogCompressor {
+
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private final LogCodec codec;
+    private final int blockSize;
+    // Limits how many blocks we hold in memory at once.
+    private final int window;
+    private final ExecutorService workers;
+    private final ExecutorService coordinator;
+
+    LogCompressor(LogCodec codec, int threads, boolean background, int blockSize) {
+        if (threads <= 0) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            threads = background ? Math.max(1, cores / 4) : cores;
+        }
+        this.codec = codec;
+        this.blockSize = blockSize;
+        window = threads * 2;
+        workers = newPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Log Compressor %d").build());
+        coordinator = newPool(1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Log Compressor Coordinator").build());
+    }
+
+    LogCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Compress the given file in the background, deleting the input once done.
+     *
+     * @param input  The file to compress.
+     * @param output The compressed file.
+     * @return A future completed once the file has been compressed.
+     */
+    CompletableFuture<Void> compressAsync(Path input, Path output) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                compress(input, output);
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }, coordinator);
+    }
+
+    /**
+     * Compress the given file, deleting the input once done.
+     *
+     * @param input  The file to compress.
+     * @param output The compressed file.
+     */
+    void compress(Path input, Path output) throws IOException {
+        Path tmp = output.resolveSibling(output.getFileName() + ".tmp");
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        try (InputStream is = Files.newInputStream(input);
+             OutputStream os = Files.newOutputStream(tmp)) {
+            boolean first = true;
+            while (true) {
+                byte[] block = is.readNBytes(blockSize);
+                // Always emit at least one stream, an empty file is not a valid archive.
+                if (block.length == 0 && !first) break;
+                first = false;
+
+                inFlight.add(workers.submit(() -> codec.compress(block)));
+                if (inFlight.size() >= window) {
+                    os.write(await(inFlight.poll()));
+                }
+                if (block.length < blockSize) break;
+            }
+            while (!inFlight.isEmpty()) {
+                os.write(await(inFlight.poll()));
+            }
+        } catch (IOException ex) {
+            inFlight.forEach(e -> e.cancel(true));
+            Files.deleteIfExists(tmp);
+            throw ex;
+        }
+        Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(input);
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted waiting for block compression.");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException io) throw io;
+            throw new IOException("Failed to compress block.", ex.getCause());
+        }
+    }
+
+    private static ExecutorService newPool(int threads, ThreadFactory factory) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+        // Rotation happens once a day, don't keep idle threads around.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -2,11 +2,14 @@ package net.covers1624.lp.nginx;
 
 import net.covers1624.lp.Config;
 import net.covers1624.lp.LabelProxy;
-import net.covers1624.quack.io.IOUtils;
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import net.covers1624.lp.jfr.NginxReloadEvent;
+import net.covers1624.lp.jfr.NginxTestEvent;
+import net.covers1624.lp.metrics.Counter;
+import net.covers1624.lp.metrics.Histogram;
 import org.apache.commons.compress.utils.FileNameUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -15,6 +18,8 @@ import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -36,9 +41,16 @@ public class NginxProcess extends Thread {
     private final Path pidFile;
     private final Path accessLog;
     private final Path errorLog;
+    private final @Nullable Path metricsLog;
+    private final @Nullable LogCompressor compressor;
     private Process process;
 
-    public NginxProcess(LabelProxy proxy, Path configDir, Path rootConfig, Path pidFile, Path accessLog, Path errorLog) {
+    private final Histogram testLatency;
+    private final Histogram reloadLatency;
+    private final Counter reloadFailures;
+    private final Counter restarts;
+
+    public NginxProcess(LabelProxy proxy, Path configDir, Path rootConfig, Path pidFile, Path accessLog, Path errorLog, @Nullable Path metricsLog) {
         this.proxy = proxy;
         this.config = proxy.config;
         this.configDir = configDir;
@@ -46,6 +58,17 @@ public class NginxProcess extends Thread {
         this.pidFile = pidFile;
         this.accessLog = accessLog;
         this.errorLog = errorLog;
+        this.metricsLog = metricsLog;
+        compressor = config.nginx.compressLogsOnRotate ? new LogCompressor(
+                config.nginx.logCompressionCodec,
+                config.nginx.logCompressionThreads,
+                config.nginx.compressLogsInBackground,
+                LogCompressor.BLOCK_SIZE
+        ) : null;
+        testLatency = proxy.metrics.histogram("labelproxy_nginx_test_seconds", "Time taken to run 'nginx -t'.");
+        reloadLatency = proxy.metrics.histogram("labelproxy_nginx_reload_seconds", "Time taken to signal nginx to reload.");
+        reloadFailures = proxy.metrics.counter("labelproxy_nginx_reload_failures_total", "Nginx reloads which returned non-zero.");
+        restarts = proxy.metrics.counter("labelproxy_nginx_starts_total", "Times the nginx master process has been started.");
         setName("Nginx Monitor");
         setDaemon(false);
     }
@@ -55,13 +78,46 @@ public class NginxProcess extends Thread {
         process.destroy();
     }
 
-    public boolean testConfig() throws IOException {
-        return signalNginx("-t") == 0;
+    /**
+     * Test the current nginx configs.
+     *
+     * @param hosts The hosts which triggered the test, for diagnostics.
+     * @return If the configs are valid.
+     */
+    public boolean testConfig(String hosts) throws IOException {
+        long start = System.nanoTime();
+        NginxTestEvent event = new NginxTestEvent();
+        event.begin();
+        try {
+            event.success = signalNginx("-t") == 0;
+            return event.success;
+        } finally {
+            testLatency.observeSince(start);
+            event.hosts = hosts;
+            event.commit();
+        }
     }
 
-    public void hotReload() throws IOException {
-        int ret = signalNginx("-s", "reload");
+    /**
+     * Signal nginx to reload its configs.
+     *
+     * @param hosts The hosts which triggered the reload, for diagnostics.
+     */
+    public void hotReload(String hosts) throws IOException {
+        long start = System.nanoTime();
+        NginxReloadEvent event = new NginxReloadEvent();
+        event.begin();
+        int ret;
+        try {
+            ret = signalNginx("-s", "reload");
+            event.success = ret == 0;
+        } finally {
+            reloadLatency.observeSince(start);
+            event.hosts = hosts;
+            event.commit();
+        }
         if (ret != 0) {
+            reloadFailures.inc();
             throw new IllegalStateException("Nginx returned: " + ret);
         }
     }
@@ -74,14 +130,23 @@ public class NginxProcess extends Thread {
         try {
             Path accessRotated = Files.move(accessLog, accessLog.resolveSibling(FileNameUtils.getBaseName(accessLog.getFileName()) + "-" + date + ".log"));
             Path errorRotated = Files.move(errorLog, errorLog.resolveSibling(FileNameUtils.getBaseName(errorLog.getFileName()) + "-" + date + ".log"));
-            signalNginx("-s", "reopen");
-            if (config.nginx.compressLogsOnRotate) {
-                compressLog(accessRotated, accessLog.resolveSibling(accessRotated.getFileName() + ".bz2"));
-                compressLog(errorRotated, errorLog.resolveSibling(accessRotated.getFileName() + ".bz2"));
+            // Nothing to archive, the tailer still has the old file open and will drain it.
+            if (metricsLog != null) {
+                Files.deleteIfExists(metricsLog);
             }
+            signalNginx("-s", "reopen");
             LOGGER.info("Logs rotated!");
+            if (compressor != null) {
+                CompletableFuture<Void> future = CompletableFuture.allOf(
+                        compressLog(compressor, accessRotated),
+                        compressLog(compressor, errorRotated)
+                );
+                if (!config.nginx.compressLogsInBackground) {
+                    future.join();
+                }
+            }
         } catch (IOException ex) {
-            LOGGER.error(DISCORD, "Failed to rotate nginx logs.");
+            LOGGER.error(DISCORD, "Failed to rotate nginx logs.", ex);
         }
     }
 
@@ -133,6 +198,7 @@ public class NginxProcess extends Thread {
         );
         builder.redirectErrorStream(true);
         process = builder.start();
+        restarts.inc();
         gobbleProcess(process, Process::getInputStream, LOGGER::info);
         process.onExit().join();
     }
@@ -206,12 +272,18 @@ public class NginxProcess extends Thread {
         thread.start();
     }
 
-    private static void compressLog(Path input, Path output) throws IOException {
-        try (InputStream is = Files.newInputStream(input);
-             OutputStream os = new BZip2CompressorOutputStream(Files.newOutputStream(output))) {
-            IOUtils.copy(is, os);
-        }
-        Files.delete(input);
+    private static CompletableFuture<Void> compressLog(LogCompressor compressor, Path input) {
+        Path output = input.resolveSibling(input.getFileName() + "." + compressor.getCodec().extension);
+        long start = System.nanoTime();
+        return compressor.compressAsync(input, output)
+                .handle((v, ex) -> {
+                    if (ex != null) {
+                        LOGGER.error(DISCORD, "Failed to compress rotated log {}.", input, ex);
+                    } else {
+                        LOGGER.info("Compressed {} in {}ms.", output.getFileName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                    return null;
+                });
     }
 
     private static class AbortNginx extends Exception {
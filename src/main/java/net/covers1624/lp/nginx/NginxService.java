@@ -1,11 +1,18 @@
 package net.covers1624.lp.nginx;
 
 import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import net.covers1624.lp.Config;
 import net.covers1624.lp.ContainerConfiguration;
 import net.covers1624.lp.LabelProxy;
+import net.covers1624.lp.jfr.ConfigBackupEvent;
+import net.covers1624.lp.jfr.ConfigRenderEvent;
 import net.covers1624.lp.letsencrypt.LetsEncryptService;
+import net.covers1624.lp.letsencrypt.OcspStapler;
+import net.covers1624.lp.metrics.Counter;
+import net.covers1624.lp.metrics.Histogram;
+import net.covers1624.lp.metrics.Labelled;
 import net.covers1624.quack.collection.FastStream;
 import net.covers1624.quack.io.IOUtils;
 import net.covers1624.quack.util.SneakyUtils;
@@ -50,12 +57,22 @@ public class NginxService {
     private final Path nginxPidFile;
     private final Path nginxAccessLog;
     private final Path nginxErrorLog;
+    private final @Nullable Path nginxMetricsLog;
+    private final @Nullable AccessLogTailer accessLogTailer;
 
     private final Map<String, NginxHost> hosts = new HashMap<>();
     private final Map<String, CompletableFuture<Void>> pendingHosts = new HashMap<>();
     private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Nginx Config Builder %d").build());
     private final ExecutorService NGINX_APPLY_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Nginx Config Applicator").build());
 
+    // Seconds, certificate issuance can take minutes.
+    private static final double[] PROPAGATION_BUCKETS = { 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600 };
+
+    private final Counter rebuilds;
+    private final Labelled<Counter> activations;
+    private final Labelled<Histogram> propagationLatency;
+    private final Labelled<Histogram> propagationStageLatency;
+
     public NginxService(LabelProxy proxy, LetsEncryptService letsEncrypt) {
         this.config = proxy.config;
         this.proxy = proxy;
@@ -70,6 +87,9 @@ public class NginxService {
         nginxPidFile = config.nginx.dir.resolve("nginx.pid");
         nginxAccessLog = logsDir.resolve("access.log");
         nginxErrorLog = logsDir.resolve("error.log");
+        // Nobody can scrape them with the metrics server off, don't log every request twice for nothing.
+        nginxMetricsLog = config.metrics.enabled && config.nginx.accessLogMetrics ? logsDir.resolve("access.json.log") : null;
+        accessLogTailer = nginxMetricsLog != null ? new AccessLogTailer(nginxMetricsLog, proxy.metrics) : null;
 
         try {
             if (tempDir != null) Files.createDirectories(tempDir);
@@ -79,7 +99,22 @@ public class NginxService {
             throw new RuntimeException("Failed to make directories.", ex);
         }
 
-        nginxProcess = new NginxProcess(proxy, configDir, rootConfig, nginxPidFile, nginxAccessLog, nginxErrorLog);
+        nginxProcess = new NginxProcess(proxy, configDir, rootConfig, nginxPidFile, nginxAccessLog, nginxErrorLog, nginxMetricsLog);
+
+        rebuilds = proxy.metrics.counter("labelproxy_nginx_rebuilds_total", "Nginx config rebuilds triggered by container changes.");
+        activations = proxy.metrics.counter("labelproxy_nginx_activations_total", "Nginx host config activations, by result.", "result");
+        propagationLatency = proxy.metrics.histogram("labelproxy_propagation_seconds", "Time from a change being detected to nginx serving it.", PROPAGATION_BUCKETS, "host");
+        propagationStageLatency = proxy.metrics.histogram("labelproxy_propagation_stage_seconds", "Time spent in each stage of propagating a change to nginx.", PROPAGATION_BUCKETS, "host", "stage");
+        proxy.metrics.gauge("labelproxy_nginx_hosts", "Nginx hosts currently active.", () -> {
+            synchronized (hosts) {
+                return hosts.size();
+            }
+        });
+        proxy.metrics.gauge("labelproxy_nginx_pending_hosts", "Nginx hosts waiting on config generation or activation.", () -> {
+            synchronized (pendingHosts) {
+                return pendingHosts.size();
+            }
+        });
     }
 
     public boolean validate() {
@@ -118,8 +153,25 @@ public class NginxService {
     }
 
     public void startNginx() {
+        startNginx(Map.of(), List.of());
+    }
+
+    /**
+     * Start nginx, reusing the host configs from a previous run where possible.
+     *
+     * @param snapshotHosts  Host -> config hash, of the hosts which were active in the previous run.
+     * @param configurations The configurations of all containers from the previous run.
+     */
+    public void startNginx(Map<String, String> snapshotHosts, Collection<ContainerConfiguration> configurations) {
         if (nginxProcess.getState() != Thread.State.NEW) throw new IllegalStateException("Nginx already started.");
 
+        if (!snapshotHosts.isEmpty() && warmStart(snapshotHosts, configurations)) {
+            if (accessLogTailer != null) {
+                accessLogTailer.start();
+            }
+            return;
+        }
+
         LOGGER.info("Startup. Archiving configs..");
         if (Files.exists(configDir)) {
             backupConfigs();
@@ -127,6 +179,77 @@ public class NginxService {
         }
         generateRootConfig();
         nginxProcess.start();
+        if (accessLogTailer != null) {
+            accessLogTailer.start();
+        }
+    }
+
+    private boolean warmStart(Map<String, String> snapshotHosts, Collection<ContainerConfiguration> configurations) {
+        LOGGER.info("Attempting warm restart..");
+        Map<String, NginxHost> grouped = new LinkedHashMap<>();
+        for (ContainerConfiguration configuration : configurations) {
+            grouped.computeIfAbsent(configuration.host(), NginxHost::new).containers.add(configuration);
+        }
+
+        Map<String, NginxHost> reused = new HashMap<>();
+        try {
+            for (Map.Entry<String, String> entry : snapshotHosts.entrySet()) {
+                NginxHost host = grouped.get(entry.getKey());
+                Path file = hostConfig(entry.getKey());
+                if (host == null || Files.notExists(file)) continue;
+
+                String content = Files.readString(file, Charsets.UTF_8);
+                if (!hashConfig(content).equals(entry.getValue())) {
+                    LOGGER.info(" Config for {} was modified, it will be rebuilt.", host.host);
+                    continue;
+                }
+                host.config = content;
+                host.hash = entry.getValue();
+                reused.put(host.host, host);
+            }
+
+            // Anything we didn't reuse is stale, we don't know what's in it.
+            try (Stream<Path> files = Files.list(hostConfigDir)) {
+                for (Path file : (Iterable<? extends Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.endsWith(".conf") && reused.containsKey(name.substring(0, name.length() - 5))) continue;
+
+                    Files.delete(file);
+                }
+            }
+
+            generateRootConfig();
+
+            if (!nginxProcess.testConfig("*")) {
+                LOGGER.warn("Existing nginx configs failed to validate. Falling back to cold start.");
+                return false;
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Failed to reuse existing nginx configs. Falling back to cold start.", ex);
+            return false;
+        }
+
+        synchronized (hosts) {
+            hosts.putAll(reused);
+        }
+        nginxProcess.start();
+        LOGGER.info(DISCORD, "Warm restart, reused {} of {} host configs.", reused.size(), snapshotHosts.size());
+        return true;
+    }
+
+    /**
+     * @return Host -> config hash, of all active hosts.
+     */
+    public Map<String, String> snapshotHosts() {
+        Map<String, String> snapshot = new HashMap<>();
+        synchronized (hosts) {
+            for (NginxHost host : hosts.values()) {
+                if (host.hash != null) {
+                    snapshot.put(host.host, host.hash);
+                }
+            }
+        }
+        return snapshot;
     }
 
     public void stopNginx() {
@@ -141,15 +264,82 @@ public class NginxService {
         NginxHost host = hosts.get(newInfo.host());
         if (host == null) return;
 
-        buildConfig(host);
+        buildConfig(host, null);
+    }
+
+    public void onStaplingUpdated(List<LetsEncryptService.CertInfo> updated) {
+        List<String> reload = new ArrayList<>();
+        for (LetsEncryptService.CertInfo info : updated) {
+            NginxHost host;
+            synchronized (hosts) {
+                host = hosts.get(info.host());
+            }
+            if (host == null) continue;
+
+            // Configs rendered before the first response was fetched need to be re-rendered
+            // to pick up ssl_stapling_file, otherwise a reload is enough to re-read the file.
+            if (host.config == null || !host.config.contains(info.ocspResponse().toString())) {
+                buildConfig(host, null);
+            } else {
+                reload.add(host.host);
+            }
+        }
+        if (reload.isEmpty()) return;
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                LOGGER.info("Reloading nginx for updated OCSP responses.");
+                nginxProcess.hotReload(String.join(",", reload));
+            } catch (Throwable ex) {
+                LOGGER.error(DISCORD, "Nginx Hot reload failed!", ex);
+            }
+        }, NGINX_APPLY_EXECUTOR);
+    }
+
+    public void onDhParamUpdated() {
+        // Configs always point at the same file, nginx just needs to re-read it.
+        // If nginx hasn't started yet, it will pick it up when it does.
+        if (nginxProcess.getState() == Thread.State.NEW) return;
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                LOGGER.info("Reloading nginx for updated dhparam.");
+                nginxProcess.hotReload("*");
+            } catch (Throwable ex) {
+                LOGGER.error(DISCORD, "Nginx Hot reload failed!", ex);
+            }
+        }, NGINX_APPLY_EXECUTOR);
     }
 
     public Set<String> getActiveHosts() {
         return hosts.keySet();
     }
 
-    public void rebuild(Collection<ContainerConfiguration> configurations) {
+    /**
+     * Rebuild the nginx configs for the given containers.
+     *
+     * @param configurations The configurations of all known containers.
+     * @param detectedAt     When the change was detected, from {@link System#nanoTime()}.
+     */
+    public void rebuild(Collection<ContainerConfiguration> configurations, long detectedAt) {
+        rebuild(configurations, detectedAt, false);
+    }
+
+    /**
+     * Bring nginx in line with the given containers after a warm restart.
+     * <p>
+     * Same as {@link #rebuild}, except finding nothing to change is expected.
+     *
+     * @param configurations The configurations of all known containers.
+     * @param detectedAt     When the change was detected, from {@link System#nanoTime()}.
+     */
+    public void reconcile(Collection<ContainerConfiguration> configurations, long detectedAt) {
+        rebuild(configurations, detectedAt, true);
+    }
+
+    private void rebuild(Collection<ContainerConfiguration> configurations, long detectedAt, boolean reconcile) {
         LOGGER.info(DISCORD, "Rebuilding Nginx configs..");
+        rebuilds.inc();
 
         Map<String, NginxHost> hosts = new LinkedHashMap<>();
         Set<String> deadHosts = new HashSet<>();
@@ -181,7 +371,11 @@ public class NginxService {
             }
         }
         if (hosts.isEmpty() && deadHosts.isEmpty()) {
-            LOGGER.error(DISCORD, "LabelProxy detected container change, however, NginxService does not think any configs need to be changed...");
+            if (reconcile) {
+                LOGGER.info(DISCORD, "Warm restart reconciled, nothing changed.");
+            } else {
+                LOGGER.error(DISCORD, "LabelProxy detected container change, however, NginxService does not think any configs need to be changed...");
+            }
             return;
         }
 
@@ -196,7 +390,7 @@ public class NginxService {
         }
 
         for (NginxHost host : hosts.values()) {
-            buildConfig(host);
+            buildConfig(host, new PropagationTimer(host.host, propagationStageLatency, detectedAt));
         }
 
         if (!deadHosts.isEmpty()) {
@@ -214,7 +408,7 @@ public class NginxService {
                     }
                 }
                 try {
-                    nginxProcess.hotReload();
+                    nginxProcess.hotReload(String.join(",", deadHosts));
                 } catch (Throwable ex) {
                     LOGGER.error(DISCORD, "Nginx Hot reload failed!", ex);
                 }
@@ -226,9 +420,16 @@ public class NginxService {
         }
     }
 
-    private void buildConfig(NginxHost host) {
+    // Only container changes are timed, renewals and stapling updates would skew propagation latency.
+    private void buildConfig(NginxHost host, @Nullable PropagationTimer timer) {
+        host.timer = timer;
+        host.stage("detect");
         synchronized (pendingHosts) {
-            host.future = new NginxHttpConfigGenerator(letsEncrypt, host).generate()
+            host.future = letsEncrypt.getCertificates(host.host)
+                    .thenApplyAsync(certInfo -> {
+                        host.stage("certificate");
+                        return new NginxHttpConfigGenerator(letsEncrypt.dhParam, letsEncrypt.ocsp, host).render(certInfo);
+                    }, EXECUTOR)
                     .thenAcceptAsync(config -> {
                         host.config = config;
                         activateConfig(host);
@@ -252,29 +453,39 @@ public class NginxService {
             }
         }
 
+        host.stage("apply_wait");
         LOGGER.info(DISCORD, "Activating nginx config for {}.", host.host);
         Path backup = backupConfigs();
+        host.stage("backup");
         boolean testSuccess = false;
         try {
             Files.writeString(IOUtils.makeParents(hostConfig(host.host)), host.config, Charsets.UTF_8);
-            testSuccess = nginxProcess.testConfig();
+            host.hash = hashConfig(host.config);
+            testSuccess = nginxProcess.testConfig(host.host);
+            host.stage("test");
         } catch (IOException ex) {
             LOGGER.error(DISCORD, "Failed to run config test for {}", host.host, ex);
         }
         if (!testSuccess) {
             backupConfigs("failed");
             LOGGER.error(DISCORD, "Generated invalid Nginx config.");
+            activations.labels("test_failed").inc();
             restoreConfigs(backup);
             return;
         }
 
         try {
-            nginxProcess.hotReload();
+            nginxProcess.hotReload(host.host);
+            host.stage("reload");
         } catch (Throwable ex) {
             LOGGER.error(DISCORD, "Failed to hot reload nginx.");
+            activations.labels("reload_failed").inc();
             restoreConfigs(backup);
             return;
         }
+        if (host.timer != null) {
+            propagationLatency.labels(host.host).observeSince(host.timer.start);
+        }
 
         synchronized (hosts) {
             hosts.put(host.host, host);
@@ -282,6 +493,7 @@ public class NginxService {
         synchronized (pendingHosts) {
             pendingHosts.remove(host.host);
         }
+        activations.labels("success").inc();
         LOGGER.info(DISCORD, "Nginx updated!");
     }
 
@@ -334,6 +546,11 @@ public class NginxService {
                         emitBlank();
                         emit("log_format main '" + config.nginx.logFormat + "'");
                         emit("access_log " + nginxAccessLog.toAbsolutePath().normalize() + " main");
+                        if (nginxMetricsLog != null) {
+                            // Owned by us, read back by the AccessLogTailer for per-host metrics.
+                            emit("log_format labelproxy " + AccessLogTailer.LOG_FORMAT);
+                            emit("access_log " + nginxMetricsLog.toAbsolutePath().normalize() + " labelproxy");
+                        }
                         emitBlank();
                         emit("sendfile on");
                         emitBlank();
@@ -383,6 +600,8 @@ public class NginxService {
         String zipName = prefix + "config-" + System.currentTimeMillis();
         Path zip = config.nginx.dir.resolve("backups/" + zipName + ".zip");
         LOGGER.info("Creating config backup {}", zip.getFileName());
+        ConfigBackupEvent event = new ConfigBackupEvent();
+        event.begin();
         try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(IOUtils.makeParents(zip)))) {
             try (Stream<Path> files = Files.walk(configDir)) {
                 for (Path file : (Iterable<? extends Path>) files::iterator) {
@@ -395,6 +614,8 @@ public class NginxService {
         } catch (IOException ex) {
             throw new RuntimeException("Failed to backup zip.", ex);
         }
+        event.backup = zipName;
+        event.commit();
         return zip;
     }
 
@@ -417,6 +638,10 @@ public class NginxService {
         }
     }
 
+    static String hashConfig(String config) {
+        return Hashing.sha256().hashString(config, Charsets.UTF_8).toString();
+    }
+
     private Path hostConfig(String host) {
         return hostConfigDir.resolve(host + ".conf");
     }
@@ -449,33 +674,52 @@ public class NginxService {
 
         public @Nullable CompletableFuture<Void> future;
         private @Nullable String config;
+        // Hash of the config as written to disk, for warm restarts.
+        private @Nullable String hash;
+        private @Nullable PropagationTimer timer;
 
-        private NginxHost(String host) {
+        NginxHost(String host) {
             this.host = host;
         }
 
         public boolean hasChanged(NginxHost newHost) {
             return !containers.equals(newHost.containers);
         }
+
+        private void stage(String stage) {
+            if (timer != null) {
+                timer.stage(stage);
+            }
+        }
     }
 
     public static class NginxHttpConfigGenerator extends NginxConfigGenerator {
 
-        private final LetsEncryptService letsEncrypt;
+        private final Path dhParam;
+        private final OcspStapler ocsp;
         private final NginxHost host;
 
-        public NginxHttpConfigGenerator(LetsEncryptService letsEncrypt, NginxHost host) {
-            this.letsEncrypt = letsEncrypt;
+        public NginxHttpConfigGenerator(Path dhParam, OcspStapler ocsp, NginxHost host) {
+            this.dhParam = dhParam;
+            this.ocsp = ocsp;
             this.host = host;
         }
 
-        public CompletableFuture<String> generate() {
-            return letsEncrypt.getCertificates(host.host)
-                    .thenApplyAsync(certInfo -> {
-                        emitHttp();
-                        emitHttps(certInfo);
-                        return sw.toString();
-                    }, EXECUTOR);
+        /**
+         * Render the config for the host.
+         *
+         * @param certInfo The certificates for the host.
+         * @return The config.
+         */
+        public String render(LetsEncryptService.CertInfo certInfo) {
+            ConfigRenderEvent event = new ConfigRenderEvent();
+            event.begin();
+            emitHttp();
+            emitHttps(certInfo);
+            event.host = host.host;
+            event.commit();
+            host.stage("render");
+            return sw.toString();
         }
 
         private void emitHttp() {
@@ -513,7 +757,7 @@ public class NginxService {
                 emitBlank();
                 emit("client_max_body_size 0M"); // I really could not care less, all endpoints get infinite upload.
                 emitBlank();
-                emit("ssl_dhparam " + letsEncrypt.dhParam);
+                emit("ssl_dhparam " + dhParam);
                 emit("ssl_certificate " + certInfo.fullChain());
                 emit("ssl_certificate_key " + certInfo.privKey());
                 emit("ssl_trusted_certificate " + certInfo.chain());
@@ -526,12 +770,21 @@ public class NginxService {
                 emit("ssl_session_cache shared:SSL:1m");
                 emit("ssl_session_tickets off");
                 emitBlank();
-                emit("ssl_stapling on");
-                emit("ssl_stapling_verify on");
-                emitBlank();
-                emit("resolver 1.1.1.1 8.8.8.8 valid=300s");
-                emit("resolver_timeout 5s");
-                emitBlank();
+                Path ocspResponse = certInfo.ocspResponse();
+                if (Files.exists(ocspResponse)) {
+                    emit("ssl_stapling on");
+                    emit("ssl_stapling_file " + ocspResponse);
+                    emit("ssl_stapling_verify on");
+                    emitBlank();
+                } else if (!Boolean.FALSE.equals(ocsp.hasResponder(certInfo))) {
+                    // We don't have a response yet, let nginx fetch it.
+                    emit("ssl_stapling on");
+                    emit("ssl_stapling_verify on");
+                    emitBlank();
+                    emit("resolver 1.1.1.1 8.8.8.8 valid=300s");
+                    emit("resolver_timeout 5s");
+                    emitBlank();
+                }
                 emit("add_header Strict-Transport-Security \"max-age=63072000; includeSubdomains\"");
                 emit("add_header X-Frame-Options SAMEORIGIN");
                 emit("add_header X-Content-Type-Options nosniff");
@@ -0,0 +1,38 @@
+package net.covers1624.lp.nginx;
+
+import net.covers1624.lp.metrics.Histogram;
+import net.covers1624.lp.metrics.Labelled;
+
+/**
+ * Times each stage of propagating a detected change for a host through to nginx.
+ * <p>
+ * Stages happen one after another, handed between threads by futures,
+ * so this needs no synchronization of its own.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+final class PropagationTimer {
+
+    private final String host;
+    private final Labelled<Histogram> stages;
+    final long start;
+    private long last;
+
+    PropagationTimer(String host, Labelled<Histogram> stages, long start) {
+        this.host = host;
+        this.stages = stages;
+        this.start = start;
+        last = start;
+    }
+
+    /**
+     * Record the time since the previous stage ended as the given stage.
+     *
+     * @param stage The stage which just ended.
+     */
+    void stage(String stage) {
+        long now = System.nanoTime();
+        stages.labels(host, stage).observe((now - last) / 1_000_000_000D);
+        last = now;
+    }
+}
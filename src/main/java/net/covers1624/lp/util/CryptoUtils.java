@@ -1,6 +1,14 @@
 package net.covers1624.lp.util;
 
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
 
 /**
@@ -16,4 +24,36 @@ public class CryptoUtils {
         }
         writer.println("-----END " + type + "-----");
     }
+
+    public static byte[] readPem(String pem, String type) {
+        String begin = "-----BEGIN " + type + "-----";
+        String end = "-----END " + type + "-----";
+        int start = pem.indexOf(begin);
+        int stop = pem.indexOf(end);
+        if (start == -1 || stop == -1 || stop < start) {
+            throw new IllegalArgumentException("Expected PEM block of type " + type);
+        }
+        return Base64.getMimeDecoder().decode(pem.substring(start + begin.length(), stop));
+    }
+
+    /**
+     * Read a key pair previously written with {@link #writePem} as
+     * separate {@code PRIVATE KEY} and {@code PUBLIC KEY} files.
+     *
+     * @param privKey   The private key file.
+     * @param pubKey    The public key file.
+     * @param algorithm The key algorithm.
+     * @return The key pair.
+     */
+    public static KeyPair readKeyPair(Path privKey, Path pubKey, String algorithm) throws IOException {
+        try {
+            KeyFactory factory = KeyFactory.getInstance(algorithm);
+            return new KeyPair(
+                    factory.generatePublic(new X509EncodedKeySpec(readPem(Files.readString(pubKey), "PUBLIC KEY"))),
+                    factory.generatePrivate(new PKCS8EncodedKeySpec(readPem(Files.readString(privKey), "PRIVATE KEY")))
+            );
+        } catch (GeneralSecurityException | IllegalArgumentException ex) {
+            throw new IOException("Failed to read key pair.", ex);
+        }
+    }
 }
@@ -4,6 +4,7 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import net.covers1624.quack.net.httpapi.EngineRequest;
 import net.covers1624.quack.net.httpapi.EngineResponse;
+import net.covers1624.quack.net.httpapi.HeaderList;
 import net.covers1624.quack.net.httpapi.HttpEngine;
 import net.covers1624.quack.net.httpapi.WebBody;
 import org.apache.logging.log4j.LogManager;
@@ -12,8 +13,10 @@ import org.jetbrains.annotations.Nullable;
 
 import java.awt.*;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * Based off the implementation provided here <a href="https://gist.github.com/k3kdude/fba6f6b37594eae3d6f9475330733bdb">...</a>
@@ -70,7 +73,17 @@ public class DiscordWebhook {
         return this;
     }
 
-    public void execute(HttpEngine engine) throws IOException {
+    public List<Embed> getEmbeds() {
+        return embeds;
+    }
+
+    /**
+     * Send the webhook.
+     *
+     * @param engine The engine to send with.
+     * @return The rate limit state reported by Discord.
+     */
+    public Response execute(HttpEngine engine) throws IOException {
         if (content == null && embeds.isEmpty()) {
             throw new IllegalArgumentException("Set content or add at least one EmbedObject");
         }
@@ -161,10 +174,53 @@ public class DiscordWebhook {
                 .url(url);
 
         try (EngineResponse response = request.execute()) {
-            if (response.statusCode() != 204) {
+            int status = response.statusCode();
+            HeaderList headers = response.headers();
+            Response resp = new Response(
+                    status,
+                    parseInt(headers.get("X-RateLimit-Remaining")),
+                    parseSeconds(headers.get("X-RateLimit-Reset-After")),
+                    status == 429 ? Objects.requireNonNullElse(parseSeconds(headers.get("Retry-After")), Duration.ofSeconds(1)) : null
+            );
+            if (status != 204 && status != 429) {
                 WebBody body = response.body();
-                LOGGER.error("Failed to send post request to discord. Got: {} {}", response.statusCode(), body != null ? body.asString() : "no body??");
+                LOGGER.error("Failed to send post request to discord. Got: {} {}", status, body != null ? body.asString() : "no body??");
             }
+            return resp;
+        }
+    }
+
+    private static int parseInt(@Nullable String str) {
+        if (str == null) return -1;
+        try {
+            return Integer.parseInt(str.strip());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    // Discord sends fractional seconds.
+    private static @Nullable Duration parseSeconds(@Nullable String str) {
+        if (str == null) return null;
+        try {
+            return Duration.ofMillis((long) Math.ceil(Double.parseDouble(str.strip()) * 1000));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * The result of executing a webhook.
+     *
+     * @param status     The http status code.
+     * @param remaining  The number of requests remaining in the current rate limit bucket, {@code -1} if unknown.
+     * @param resetAfter How long until the rate limit bucket resets, if known.
+     * @param retryAfter How long to wait before retrying, if we were rate limited.
+     */
+    public record Response(int status, int remaining, @Nullable Duration resetAfter, @Nullable Duration retryAfter) {
+
+        public boolean isRateLimited() {
+            return retryAfter != null;
         }
     }
 
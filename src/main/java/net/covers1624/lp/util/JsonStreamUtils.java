@@ -0,0 +1,105 @@
+package net.covers1624.lp.util;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Helpers for hand-written streaming {@link TypeAdapter}s.
+ * <p>
+ * These read exactly the shapes we care about, skipping everything else
+ * with {@link JsonReader#skipValue()} without building a tree.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public final class JsonStreamUtils {
+
+    private JsonStreamUtils() {
+    }
+
+    public static @Nullable String nextStringOrNull(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    public static String nextString(JsonReader in, String name) throws IOException {
+        String str = nextStringOrNull(in);
+        if (str == null) throw new JsonParseException("Expected string for " + name + " at " + in.getPath());
+        return str;
+    }
+
+    /**
+     * Read an object of strings into a map. A json {@code null} results in an empty map.
+     */
+    public static Map<String, String> readStringMap(JsonReader in) throws IOException {
+        return readMap(in, JsonStreamUtils::nextStringOrNull);
+    }
+
+    /**
+     * Read an array of strings into a list. A json {@code null} results in an empty list.
+     */
+    public static List<String> readStringList(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return List.of();
+        }
+        List<String> list = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            String str = nextStringOrNull(in);
+            if (str != null) {
+                list.add(str);
+            }
+        }
+        in.endArray();
+        return list;
+    }
+
+    /**
+     * Read an object into a map. A json {@code null} results in an empty map.
+     * <p>
+     * Entries with {@code null} values are dropped.
+     */
+    public static <T> Map<String, T> readMap(JsonReader in, Reader<T> valueReader) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return Map.of();
+        }
+        Map<String, T> map = new LinkedHashMap<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            String key = in.nextName();
+            T value = valueReader.read(in);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        in.endObject();
+        return map;
+    }
+
+    public interface Reader<T> {
+
+        T read(JsonReader in) throws IOException;
+    }
+
+    /**
+     * A {@link TypeAdapter} for response objects which we only ever read.
+     */
+    public static abstract class ReadOnlyTypeAdapter<T> extends TypeAdapter<T> {
+
+        @Override
+        public final void write(JsonWriter out, T value) throws IOException {
+            throw new UnsupportedOperationException("Type is read only.");
+        }
+    }
+}
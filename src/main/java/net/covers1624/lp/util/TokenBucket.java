@@ -0,0 +1,104 @@
+package net.covers1624.lp.util;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A simple token bucket rate limiter.
+ * <p>
+ * Callers reserve a token up front and then sleep for however long the
+ * bucket tells them to, so waiting callers are served in order.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private final LongSupplier clock;
+
+    private double tokens;
+    // May be in the future if we are paused.
+    private long lastRefill;
+    private long pausedUntil;
+
+    /**
+     * @param perSecond The sustained rate of tokens per second.
+     * @param burst     The maximum number of tokens which may accumulate.
+     */
+    public TokenBucket(double perSecond, int burst) {
+        this(perSecond, burst, System::nanoTime);
+    }
+
+    TokenBucket(double perSecond, int burst, LongSupplier clock) {
+        tokensPerNano = perSecond / TimeUnit.SECONDS.toNanos(1);
+        capacity = burst;
+        this.clock = clock;
+        tokens = burst;
+        lastRefill = clock.getAsLong();
+        pausedUntil = lastRefill;
+    }
+
+    /**
+     * Take a token, blocking until one is available.
+     * <p>
+     * If the bucket is paused whilst we are waiting, we keep waiting
+     * until the pause is over.
+     *
+     * @throws InterruptedException If interrupted whilst waiting.
+     */
+    public void acquire() throws InterruptedException {
+        long wait = reserve();
+        while (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+            wait = pauseRemaining();
+        }
+    }
+
+    /**
+     * Stop handing out tokens for the given duration, after which
+     * the bucket starts refilling from empty.
+     * <p>
+     * Used when the remote tells us we are going too fast.
+     *
+     * @param duration The duration.
+     */
+    public synchronized void pause(Duration duration) {
+        long now = clock.getAsLong();
+        refill(now);
+        tokens = Math.min(tokens, 0);
+        pausedUntil = Math.max(pausedUntil, now + duration.toNanos());
+        lastRefill = Math.max(lastRefill, pausedUntil);
+    }
+
+    /**
+     * @return How long until the current pause is over, in nanoseconds.
+     */
+    synchronized long pauseRemaining() {
+        return Math.max(0, pausedUntil - clock.getAsLong());
+    }
+
+    /**
+     * Reserve a token.
+     *
+     * @return How long the caller must wait before using it, in nanoseconds.
+     */
+    synchronized long reserve() {
+        long now = clock.getAsLong();
+        refill(now);
+        tokens -= 1;
+        long wait = Math.max(0, lastRefill - now);
+        if (tokens < 0) {
+            wait += (long) Math.ceil(-tokens / tokensPerNano);
+        }
+        return wait;
+    }
+
+    private void refill(long now) {
+        if (now <= lastRefill) return;
+
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,52 @@
+package net.covers1624.lp;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class StateSnapshotTests {
+
+    @Test
+    public void testRoundTrip(@TempDir Path dir) throws IOException {
+        ContainerConfiguration config = new ContainerConfiguration(
+                "abc123",
+                "172.18.0.2",
+                "a.example.com",
+                8080,
+                true,
+                false,
+                "/",
+                "http://172.18.0.2:8080",
+                List.of("10.0.0.0/8"),
+                List.of("all"),
+                Map.of("client_max_body_size", List.of("10m"))
+        );
+        StateSnapshot snapshot = new StateSnapshot(Map.of("abc123", List.of(config)), Map.of("a.example.com", "deadbeef"));
+        Path path = dir.resolve("state.json");
+        snapshot.save(path);
+
+        assertEquals(snapshot, StateSnapshot.load(path));
+    }
+
+    @Test
+    public void testCorrupt(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("state.json");
+        assertNull(StateSnapshot.load(path));
+
+        Files.writeString(path, "{\"containers\": {");
+        assertNull(StateSnapshot.load(path));
+
+        Files.writeString(path, "{}");
+        assertNull(StateSnapshot.load(path));
+    }
+}
@@ -0,0 +1,126 @@
+package net.covers1624.lp.cloudflare;
+
+import com.google.common.base.Suppliers;
+import net.covers1624.curl4j.CABundle;
+import net.covers1624.lp.Config;
+import net.covers1624.lp.cloudflare.data.dns.BatchBuilder;
+import net.covers1624.lp.cloudflare.data.dns.BatchDNSRecordsResponse;
+import net.covers1624.lp.cloudflare.data.dns.DnsRecord;
+import net.covers1624.lp.cloudflare.data.dns.RecordBuilder;
+import net.covers1624.lp.harness.FakeCloudflareServer;
+import net.covers1624.quack.collection.FastStream;
+import net.covers1624.quack.net.httpapi.curl4j.Curl4jHttpEngine;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+import static net.covers1624.lp.cloudflare.data.dns.RecordType.TXT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class CloudflareServiceTests {
+
+    private static final Supplier<Curl4jHttpEngine> ENGINE = Suppliers.memoize(() -> new Curl4jHttpEngine(CABundle.builtIn()));
+
+    @Test
+    public void testBatchRecords() throws Exception {
+        try (FakeCloudflareServer server = new FakeCloudflareServer()) {
+            String zoneId = server.addZone("example.com");
+            CloudflareService cloudflare = newService(server);
+            CloudflareService.ZoneInfo zone = cloudflare.getZoneInfo("a.example.com");
+            server.requests.clear();
+
+            BatchBuilder creates = new BatchBuilder();
+            for (String name : List.of("a", "b", "c")) {
+                creates.post(new RecordBuilder()
+                        .ttl(60)
+                        .name("_acme-challenge." + name + ".example.com")
+                        .content("digest-" + name)
+                        .type(TXT)
+                );
+            }
+            BatchDNSRecordsResponse created = cloudflare.batchDNSRecords(zone, creates);
+            assertEquals(3, created.batch().posts().size());
+            assertEquals(3, server.records(zoneId).size());
+
+            BatchBuilder deletes = new BatchBuilder();
+            for (DnsRecord record : created.batch().posts()) {
+                deletes.delete(record.id());
+            }
+            BatchDNSRecordsResponse deleted = cloudflare.batchDNSRecords(zone, deletes);
+            assertEquals(3, deleted.batch().deletes().size());
+            assertEquals(0, server.records(zoneId).size());
+
+            // One round trip each way, regardless of how many records.
+            assertEquals(List.of(
+                    "POST /zones/" + zoneId + "/dns_records/batch",
+                    "POST /zones/" + zoneId + "/dns_records/batch"
+            ), server.requests);
+        }
+    }
+
+    @Test
+    public void testDeleteFallsBackWhenBatchFails() throws Exception {
+        try (FakeCloudflareServer server = new FakeCloudflareServer()) {
+            String zoneId = server.addZone("example.com");
+            CloudflareService cloudflare = newService(server);
+            CloudflareService.ZoneInfo zone = cloudflare.getZoneInfo("a.example.com");
+
+            BatchBuilder creates = new BatchBuilder();
+            for (String name : List.of("a", "b")) {
+                creates.post(new RecordBuilder()
+                        .ttl(60)
+                        .name("_acme-challenge." + name + ".example.com")
+                        .content("digest-" + name)
+                        .type(TXT)
+                );
+            }
+            List<String> ids = FastStream.of(cloudflare.batchDNSRecords(zone, creates).batch().posts())
+                    .map(DnsRecord::id)
+                    .toList();
+            server.requests.clear();
+
+            // Batches are never retried, the records must still be cleaned up.
+            server.failBatches.set(1);
+            cloudflare.deleteDNSRecords(zone, ids);
+            assertEquals(0, server.records(zoneId).size());
+            assertEquals(List.of(
+                    "POST /zones/" + zoneId + "/dns_records/batch",
+                    "DELETE /zones/" + zoneId + "/dns_records/" + ids.get(0),
+                    "DELETE /zones/" + zoneId + "/dns_records/" + ids.get(1)
+            ), server.requests);
+        }
+    }
+
+    @Test
+    public void testZonesArePaginated() throws Exception {
+        try (FakeCloudflareServer server = new FakeCloudflareServer()) {
+            for (int i = 0; i < 5; i++) {
+                server.addZone("example" + i + ".com");
+            }
+            Config config = newConfig(server);
+            config.cloudflare.perPage = 2;
+            CloudflareService cloudflare = new CloudflareService(config, ENGINE);
+
+            assertEquals("example4.com", cloudflare.getZoneInfo("www.example4.com").zone().name());
+            assertEquals(3, server.requests.size());
+        }
+    }
+
+    private static CloudflareService newService(FakeCloudflareServer server) {
+        return new CloudflareService(newConfig(server), ENGINE);
+    }
+
+    private static Config newConfig(FakeCloudflareServer server) {
+        Config config = new Config();
+        config.cloudflare.apiUrl = server.apiUrl();
+        Config.CloudflareAuth auth = new Config.CloudflareAuth();
+        auth.email = "test@example.com";
+        auth.key = "key";
+        config.cloudflareAuths.add(auth);
+        return config;
+    }
+}
@@ -0,0 +1,47 @@
+package net.covers1624.lp.cloudflare;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class ZoneIndexTests {
+
+    @Test
+    public void testLookup() {
+        ZoneIndex<String> index = ZoneIndex.of(Map.of(
+                "example.com", "a",
+                "example.net", "b"
+        ));
+        assertEquals("a", index.lookup("example.com"));
+        assertEquals("a", index.lookup("www.example.com"));
+        assertEquals("b", index.lookup("a.b.example.net"));
+        assertNull(index.lookup("example.org"));
+    }
+
+    @Test
+    public void testLongestSuffix() {
+        ZoneIndex<String> index = ZoneIndex.of(Map.of(
+                "example.com", "a",
+                "sub.example.com", "b"
+        ));
+        assertEquals("a", index.lookup("www.example.com"));
+        assertEquals("b", index.lookup("sub.example.com"));
+        assertEquals("b", index.lookup("www.sub.example.com"));
+    }
+
+    @Test
+    public void testLabelBoundaries() {
+        ZoneIndex<String> index = ZoneIndex.of(Map.of(
+                "example.com", "a"
+        ));
+        assertNull(index.lookup("notexample.com"));
+        assertNull(index.lookup("com"));
+        assertEquals("a", index.lookup("WWW.Example.COM."));
+    }
+}
@@ -0,0 +1,134 @@
+package net.covers1624.lp.harness;
+
+import net.covers1624.lp.Config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Produces an AppCDS archive for the LabelProxy jar, from a training run against
+ * the offline stand-ins.
+ * <p>
+ * The jar is started in a child JVM with {@code -XX:ArchiveClassesAtExit}, left to
+ * serve a handful of containers end to end, then stopped with SIGTERM like docker
+ * would. The archive is only valid for the JVM build and jar path it was trained
+ * with, so this should be run with the same java and jar location as production.
+ * <p>
+ * With {@code --measure}, the jar is then run again with and without the archive,
+ * reporting time to serve every host and how many classes came from the archive.
+ * <p>
+ * Usage: {@code CdsTraining [--measure] <jar> <archive> [jvm args...]}
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class CdsTraining {
+
+    private static final String ZONE = "cds.test";
+    private static final int CONTAINERS = 5;
+    private static final long TIMEOUT = TimeUnit.MINUTES.toNanos(5);
+
+    public static void main(String[] args) throws Exception {
+        List<String> argList = new ArrayList<>(List.of(args));
+        boolean measure = argList.remove("--measure");
+        if (argList.size() < 2) {
+            System.err.println("Usage: CdsTraining [--measure] <jar> <archive> [jvm args...]");
+            System.exit(1);
+        }
+        Path jar = Path.of(argList.get(0)).toAbsolutePath();
+        Path archive = Path.of(argList.get(1)).toAbsolutePath();
+        List<String> jvmArgs = argList.subList(2, argList.size());
+
+        Files.deleteIfExists(archive);
+        Run training = run(jar, jvmArgs, "-XX:ArchiveClassesAtExit=" + archive);
+        if (Files.notExists(archive)) {
+            System.err.println("Training run did not produce an archive.");
+            System.exit(1);
+        }
+        System.out.printf("Wrote %s (%d KiB). Training run: %s%n", archive, Files.size(archive) / 1024, training);
+
+        if (measure) {
+            System.out.printf("Without archive: %s%n", run(jar, jvmArgs, "-Xshare:auto"));
+            System.out.printf("With archive:    %s%n", run(jar, jvmArgs, "-XX:SharedArchiveFile=" + archive));
+        }
+    }
+
+    private static Run run(Path jar, List<String> jvmArgs, String cdsArg) throws Exception {
+        Path dir = Files.createTempDirectory("lp-cds");
+        try (FakeDockerDaemon docker = new FakeDockerDaemon(dir.resolve("docker.sock"));
+             FakeCloudflareServer cloudflare = new FakeCloudflareServer();
+             FakeAcmeServer acme = new FakeAcmeServer(cloudflare::txtRecords)) {
+            cloudflare.addZone(ZONE);
+            // LabelProxy always loads ./config.json.
+            Config config = Config.load(dir.resolve("config.json"));
+            LabelProxyHarness.configure(config, dir, docker, cloudflare, acme, new StubNginx(dir.resolve("bin")));
+            config.save();
+            for (int i = 0; i < CONTAINERS; i++) {
+                docker.startContainer("c" + i, Map.of(
+                        "LabelProxy.host", "c" + i + "." + ZONE,
+                        "LabelProxy.port", "8080"
+                ));
+            }
+
+            Path classLog = dir.resolve("classes.log");
+            List<String> command = new ArrayList<>();
+            command.add(ProcessHandle.current().info().command().orElse("java"));
+            command.addAll(jvmArgs);
+            command.add(cdsArg);
+            command.add("-Xlog:class+load=info:file=" + classLog);
+            command.add("-jar");
+            command.add(jar.toString());
+
+            ProcessBuilder builder = new ProcessBuilder(command)
+                    .directory(dir.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(dir.resolve("labelproxy.log").toFile());
+            // Otherwise LabelProxy tries to find its own container, we aren't in one as far as the fake is concerned.
+            builder.environment().remove("HOSTNAME");
+
+            Path hostConfigs = config.nginx.dir.resolve("conf/nginx.conf.d");
+            long start = System.nanoTime();
+            Process process = builder.start();
+            long served;
+            try {
+                while (countConfigs(hostConfigs) < CONTAINERS) {
+                    if (!process.isAlive()) throw new IllegalStateException("LabelProxy exited early, see " + dir.resolve("labelproxy.log"));
+                    if (System.nanoTime() - start > TIMEOUT) throw new IllegalStateException("Timed out waiting for hosts, see " + dir.resolve("labelproxy.log"));
+                    Thread.sleep(20);
+                }
+                served = System.nanoTime() - start;
+            } finally {
+                // SIGTERM, the same as docker stop. The archive is written as the JVM exits.
+                process.destroy();
+                if (!process.waitFor(1, TimeUnit.MINUTES)) {
+                    process.destroyForcibly();
+                }
+            }
+
+            List<String> loaded = Files.readAllLines(classLog);
+            long shared = loaded.stream().filter(e -> e.contains("source: shared objects file")).count();
+            return new Run(TimeUnit.NANOSECONDS.toMillis(served), loaded.size(), shared);
+        }
+    }
+
+    private static long countConfigs(Path dir) throws IOException {
+        if (Files.notExists(dir)) return 0;
+
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(e -> e.getFileName().toString().endsWith(".conf")).count();
+        }
+    }
+
+    private record Run(long servedMillis, int classes, long shared) {
+
+        @Override
+        public String toString() {
+            return String.format("%d hosts served in %dms, %d classes loaded, %d from CDS", CONTAINERS, servedMillis, classes, shared);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package net.covers1624.lp.harness;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequest;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A minimal, Pebble-like, ACME server for testing offline.
+ * <p>
+ * Implements just enough of RFC 8555 for a dns-01 issuance. JWS signatures are not
+ * verified. By default every challenge passes, if a TXT resolver is provided the
+ * challenge digest is checked against it, but only for presence.
+ * <p>
+ * Certificates are issued from a throwaway CA generated on construction.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class FakeAcmeServer implements AutoCloseable {
+
+    private static final Gson GSON = new Gson();
+    private static final Duration LIFETIME = Duration.ofDays(90);
+
+    private final HttpServer server;
+    private final @Nullable Function<String, List<String>> txtResolver;
+    private final KeyPair caKey;
+    private final X509CertificateHolder caCert;
+
+    private final Map<String, Order> orders = new HashMap<>();
+    private final Map<String, Authz> authzs = new HashMap<>();
+    private final Map<String, String> certs = new HashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    public final AtomicInteger issued = new AtomicInteger();
+
+    public FakeAcmeServer(@Nullable Function<String, List<String>> txtResolver) throws IOException, GeneralSecurityException {
+        this.txtResolver = txtResolver;
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("EC");
+        gen.initialize(new ECGenParameterSpec("secp256r1"));
+        caKey = gen.generateKeyPair();
+        X500Name caName = new X500Name("CN=Fake ACME Root");
+        Instant now = Instant.now();
+        try {
+            caCert = new JcaX509v3CertificateBuilder(caName, BigInteger.ONE, Date.from(now), Date.from(now.plus(Duration.ofDays(3650))), caName, caKey.getPublic())
+                    .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+                    .build(signer());
+        } catch (Exception ex) {
+            throw new GeneralSecurityException("Failed to create fake CA.", ex);
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public String directoryUrl() {
+        return baseUrl() + "/dir";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            exchange.getResponseHeaders().add("Replay-Nonce", Base64.getUrlEncoder().withoutPadding().encodeToString(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8)));
+            exchange.getResponseHeaders().add("Cache-Control", "no-store");
+            String method = exchange.getRequestMethod();
+            String[] parts = exchange.getRequestURI().getPath().substring(1).split("/");
+
+            if (parts[0].equals("dir")) {
+                JsonObject dir = new JsonObject();
+                dir.addProperty("newNonce", baseUrl() + "/nonce");
+                dir.addProperty("newAccount", baseUrl() + "/account");
+                dir.addProperty("newOrder", baseUrl() + "/order");
+                dir.addProperty("revokeCert", baseUrl() + "/revoke");
+                dir.addProperty("keyChange", baseUrl() + "/key-change");
+                JsonObject meta = new JsonObject();
+                meta.addProperty("termsOfService", baseUrl() + "/tos");
+                dir.add("meta", meta);
+                json(exchange, 200, dir);
+                return;
+            }
+            if (parts[0].equals("nonce")) {
+                exchange.sendResponseHeaders(method.equals("HEAD") ? 200 : 204, -1);
+                return;
+            }
+            if (!method.equals("POST")) {
+                problem(exchange, 405, "malformed", "Expected POST.");
+                return;
+            }
+
+            // Signatures are not checked, all we need is the payload, empty for POST-as-GET.
+            JsonObject jws = GSON.fromJson(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), JsonObject.class);
+            String payloadStr = new String(Base64.getUrlDecoder().decode(jws.get("payload").getAsString()), StandardCharsets.UTF_8);
+            @Nullable JsonObject payload = payloadStr.isEmpty() ? null : GSON.fromJson(payloadStr, JsonObject.class);
+
+            synchronized (this) {
+                switch (parts[0]) {
+                    case "account" -> account(exchange, parts);
+                    case "order" -> order(exchange, parts, payload);
+                    case "authz" -> {
+                        Authz authz = authzs.get(parts[1]);
+                        if (authz == null) {
+                            problem(exchange, 404, "malformed", "No such authorization.");
+                        } else {
+                            json(exchange, 200, authz.json());
+                        }
+                    }
+                    case "chall" -> challenge(exchange, parts, payload);
+                    case "finalize" -> finalizeOrder(exchange, parts, payload);
+                    case "cert" -> {
+                        String chain = certs.get(parts[1]);
+                        if (chain == null) {
+                            problem(exchange, 404, "malformed", "No such certificate.");
+                            return;
+                        }
+                        byte[] bytes = chain.getBytes(StandardCharsets.US_ASCII);
+                        exchange.getResponseHeaders().add("Content-Type", "application/pem-certificate-chain");
+                        exchange.sendResponseHeaders(200, bytes.length);
+                        exchange.getResponseBody().write(bytes);
+                    }
+                    default -> problem(exchange, 404, "malformed", "Unknown endpoint.");
+                }
+            }
+        }
+    }
+
+    private void account(HttpExchange exchange, String[] parts) throws IOException {
+        boolean created = parts.length == 1;
+        String url = created ? baseUrl() + "/account/" + nextId.incrementAndGet() : baseUrl() + "/account/" + parts[1];
+        JsonObject account = new JsonObject();
+        account.addProperty("status", "valid");
+        account.add("contact", new JsonArray());
+        account.addProperty("orders", url + "/orders");
+        exchange.getResponseHeaders().add("Location", url);
+        json(exchange, created ? 201 : 200, account);
+    }
+
+    private void order(HttpExchange exchange, String[] parts, @Nullable JsonObject payload) throws IOException {
+        if (parts.length == 2) {
+            Order order = orders.get(parts[1]);
+            if (order == null) {
+                problem(exchange, 404, "malformed", "No such order.");
+            } else {
+                json(exchange, 200, order.json());
+            }
+            return;
+        }
+        if (payload == null) {
+            problem(exchange, 400, "malformed", "Missing payload.");
+            return;
+        }
+
+        Order order = new Order(String.valueOf(nextId.incrementAndGet()));
+        for (JsonElement e : payload.getAsJsonArray("identifiers")) {
+            Authz authz = new Authz(String.valueOf(nextId.incrementAndGet()), e.getAsJsonObject().get("value").getAsString(), token());
+            authzs.put(authz.id, authz);
+            order.authzs.add(authz);
+        }
+        orders.put(order.id, order);
+        exchange.getResponseHeaders().add("Location", baseUrl() + "/order/" + order.id);
+        json(exchange, 201, order.json());
+    }
+
+    private void challenge(HttpExchange exchange, String[] parts, @Nullable JsonObject payload) throws IOException {
+        Authz authz = authzs.get(parts[1]);
+        if (authz == null) {
+            problem(exchange, 404, "malformed", "No such challenge.");
+            return;
+        }
+        // A non-empty payload is the client telling us to validate.
+        if (payload != null && authz.status.equals("pending")) {
+            boolean valid = txtResolver == null || !txtResolver.apply("_acme-challenge." + authz.domain).isEmpty();
+            authz.status = valid ? "valid" : "invalid";
+        }
+        exchange.getResponseHeaders().add("Link", "<" + baseUrl() + "/authz/" + authz.id + ">;rel=\"up\"");
+        json(exchange, 200, authz.challengeJson());
+    }
+
+    private void finalizeOrder(HttpExchange exchange, String[] parts, @Nullable JsonObject payload) throws IOException {
+        Order order = orders.get(parts[1]);
+        if (order == null || payload == null) {
+            problem(exchange, 404, "malformed", "No such order.");
+            return;
+        }
+        if (!order.status().equals("ready")) {
+            problem(exchange, 403, "orderNotReady", "Order is " + order.status() + ".");
+            return;
+        }
+        try {
+            byte[] csrBytes = Base64.getUrlDecoder().decode(payload.get("csr").getAsString());
+            order.certificate = issue(new JcaPKCS10CertificationRequest(csrBytes), order);
+            certs.put(order.id, order.certificate);
+            issued.incrementAndGet();
+        } catch (Exception ex) {
+            problem(exchange, 400, "badCSR", ex.toString());
+            return;
+        }
+        exchange.getResponseHeaders().add("Location", baseUrl() + "/order/" + order.id);
+        json(exchange, 200, order.json());
+    }
+
+    private String issue(JcaPKCS10CertificationRequest csr, Order order) throws Exception {
+        Instant now = Instant.now();
+        String domain = order.authzs.get(0).domain;
+        GeneralName[] sans = order.authzs.stream()
+                .map(e -> new GeneralName(GeneralName.dNSName, e.domain))
+                .toArray(GeneralName[]::new);
+        X509CertificateHolder cert = new JcaX509v3CertificateBuilder(
+                caCert.getSubject(),
+                BigInteger.valueOf(nextId.incrementAndGet()),
+                Date.from(now.minus(Duration.ofMinutes(1))),
+                Date.from(now.plus(LIFETIME)),
+                new X500Name("CN=" + domain),
+                csr.getPublicKey()
+        )
+                .addExtension(Extension.subjectAlternativeName, false, new GeneralNames(sans))
+                .build(signer());
+        return pem(cert.getEncoded()) + pem(caCert.getEncoded());
+    }
+
+    private ContentSigner signer() throws Exception {
+        return new JcaContentSignerBuilder("SHA256withECDSA").build(caKey.getPrivate());
+    }
+
+    private static String pem(byte[] der) {
+        return "-----BEGIN CERTIFICATE-----\n"
+               + Base64.getMimeEncoder(64, new byte[] { '\n' }).encodeToString(der)
+               + "\n-----END CERTIFICATE-----\n";
+    }
+
+    private static String token() {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static void json(HttpExchange exchange, int status, JsonObject obj) throws IOException {
+        byte[] bytes = GSON.toJson(obj).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static void problem(HttpExchange exchange, int status, String type, String detail) throws IOException {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("type", "urn:ietf:params:acme:error:" + type);
+        obj.addProperty("detail", detail);
+        byte[] bytes = GSON.toJson(obj).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/problem+json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private class Order {
+
+        private final String id;
+        private final List<Authz> authzs = new ArrayList<>();
+        private final Instant expires = Instant.now().plus(Duration.ofDays(7));
+        private @Nullable String certificate;
+
+        private Order(String id) {
+            this.id = id;
+        }
+
+        private String status() {
+            if (certificate != null) return "valid";
+            if (authzs.stream().anyMatch(e -> e.status.equals("invalid"))) return "invalid";
+            if (authzs.stream().allMatch(e -> e.status.equals("valid"))) return "ready";
+            return "pending";
+        }
+
+        private JsonObject json() {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("status", status());
+            obj.addProperty("expires", expires.toString());
+            JsonArray identifiers = new JsonArray();
+            JsonArray authorizations = new JsonArray();
+            for (Authz authz : authzs) {
+                identifiers.add(authz.identifier());
+                authorizations.add(baseUrl() + "/authz/" + authz.id);
+            }
+            obj.add("identifiers", identifiers);
+            obj.add("authorizations", authorizations);
+            obj.addProperty("finalize", baseUrl() + "/finalize/" + id);
+            if (certificate != null) {
+                obj.addProperty("certificate", baseUrl() + "/cert/" + id);
+            }
+            return obj;
+        }
+    }
+
+    private class Authz {
+
+        private final String id;
+        private final String domain;
+        private final String token;
+        private final Instant expires = Instant.now().plus(Duration.ofDays(7));
+        private String status = "pending";
+
+        private Authz(String id, String domain, String token) {
+            this.id = id;
+            this.domain = domain;
+            this.token = token;
+        }
+
+        private JsonObject identifier() {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("type", "dns");
+            obj.addProperty("value", domain);
+            return obj;
+        }
+
+        private JsonObject challengeJson() {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("type", "dns-01");
+            obj.addProperty("url", baseUrl() + "/chall/" + id);
+            obj.addProperty("status", status.equals("valid") ? "valid" : status.equals("invalid") ? "invalid" : "pending");
+            obj.addProperty("token", token);
+            if (status.equals("valid")) {
+                obj.addProperty("validated", Instant.now().toString());
+            }
+            return obj;
+        }
+
+        private JsonObject json() {
+            JsonObject obj = new JsonObject();
+            obj.add("identifier", identifier());
+            obj.addProperty("status", status);
+            obj.addProperty("expires", expires.toString());
+            JsonArray challenges = new JsonArray();
+            challenges.add(challengeJson());
+            obj.add("challenges", challenges);
+            return obj;
+        }
+    }
+}
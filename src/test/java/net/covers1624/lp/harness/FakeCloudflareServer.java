@@ -0,0 +1,194 @@
+package net.covers1624.lp.harness;
+
+import com.google.gson.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal stand-in for the Cloudflare v4 API, for testing offline.
+ * <p>
+ * Only implements the endpoints LabelProxy uses.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class FakeCloudflareServer implements AutoCloseable {
+
+    private static final Gson GSON = new Gson();
+
+    private final HttpServer server;
+    private final Map<String, String> zones = new LinkedHashMap<>();
+    private final Map<String, Map<String, JsonObject>> records = new HashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    public final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    // How many of the next batch requests fail with a 500, without being applied.
+    public final AtomicInteger failBatches = new AtomicInteger();
+
+    public FakeCloudflareServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/client/v4/", this::handle);
+        server.start();
+    }
+
+    public String apiUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/client/v4";
+    }
+
+    public synchronized String addZone(String name) {
+        String id = "zone" + nextId.incrementAndGet();
+        zones.put(id, name);
+        records.put(id, new LinkedHashMap<>());
+        return id;
+    }
+
+    public synchronized Collection<JsonObject> records(String zoneId) {
+        return List.copyOf(records.get(zoneId).values());
+    }
+
+    /**
+     * Resolve a TXT record, as a DNS server serving these zones would.
+     *
+     * @param name The record name.
+     * @return The content of all matching TXT records.
+     */
+    public synchronized List<String> txtRecords(String name) {
+        List<String> found = new ArrayList<>();
+        for (Map<String, JsonObject> zoneRecords : records.values()) {
+            for (JsonObject record : zoneRecords.values()) {
+                if (record.get("type").getAsString().equals("TXT") && stripDot(record.get("name").getAsString()).equals(stripDot(name))) {
+                    found.add(record.get("content").getAsString());
+                }
+            }
+        }
+        return found;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath().substring("/client/v4".length());
+            requests.add(method + " " + path);
+
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String[] parts = path.substring(1).split("/");
+            JsonObject resp;
+            synchronized (this) {
+                if (method.equals("GET") && parts.length == 1 && parts[0].equals("zones")) {
+                    List<JsonElement> all = new ArrayList<>();
+                    zones.forEach((id, name) -> {
+                        JsonObject zone = new JsonObject();
+                        zone.addProperty("id", id);
+                        zone.addProperty("name", name);
+                        all.add(zone);
+                    });
+                    resp = page(all, query);
+                } else if (method.equals("GET") && parts.length == 3 && parts[2].equals("dns_records")) {
+                    resp = page(new ArrayList<>(records.get(parts[1]).values()), query);
+                } else if (method.equals("DELETE") && parts.length == 4 && parts[2].equals("dns_records")) {
+                    if (records.get(parts[1]).remove(parts[3]) == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    JsonObject deleted = new JsonObject();
+                    deleted.addProperty("id", parts[3]);
+                    resp = success(deleted, null);
+                } else if (method.equals("POST") && parts.length == 4 && parts[3].equals("batch")) {
+                    if (failBatches.getAndUpdate(e -> Math.max(0, e - 1)) > 0) {
+                        exchange.sendResponseHeaders(500, -1);
+                        return;
+                    }
+                    JsonObject body = JsonParser.parseReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)).getAsJsonObject();
+                    resp = batch(parts[1], body);
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+            }
+            byte[] bytes = GSON.toJson(resp).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+        }
+    }
+
+    private JsonObject batch(String zoneId, JsonObject body) {
+        Map<String, JsonObject> zoneRecords = records.get(zoneId);
+        JsonObject result = new JsonObject();
+        JsonArray deleted = new JsonArray();
+        for (JsonElement e : body.getAsJsonArray("deletes")) {
+            JsonObject removed = zoneRecords.remove(e.getAsJsonObject().get("id").getAsString());
+            if (removed != null) {
+                deleted.add(removed);
+            }
+        }
+        JsonArray posted = new JsonArray();
+        for (JsonElement e : body.getAsJsonArray("posts")) {
+            JsonObject record = e.getAsJsonObject().deepCopy();
+            String id = "record" + nextId.incrementAndGet();
+            record.addProperty("id", id);
+            record.addProperty("zone_id", zoneId);
+            zoneRecords.put(id, record);
+            posted.add(record);
+        }
+        result.add("deletes", deleted);
+        result.add("posts", posted);
+        return success(result, null);
+    }
+
+    private static String stripDot(String name) {
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static JsonObject page(List<JsonElement> all, Map<String, String> query) {
+        int page = Integer.parseInt(query.getOrDefault("page", "1"));
+        int perPage = Integer.parseInt(query.getOrDefault("per_page", "100"));
+        int from = Math.min(all.size(), (page - 1) * perPage);
+        int to = Math.min(all.size(), from + perPage);
+        JsonArray result = new JsonArray();
+        all.subList(from, to).forEach(result::add);
+
+        JsonObject info = new JsonObject();
+        info.addProperty("count", to - from);
+        info.addProperty("page", page);
+        info.addProperty("per_page", perPage);
+        info.addProperty("total_count", all.size());
+        info.addProperty("total_pages", Math.max(1, (all.size() + perPage - 1) / perPage));
+        return success(result, info);
+    }
+
+    private static JsonObject success(JsonElement result, JsonObject resultInfo) {
+        JsonObject resp = new JsonObject();
+        resp.addProperty("success", true);
+        resp.add("errors", new JsonArray());
+        resp.add("messages", new JsonArray());
+        resp.add("result", result);
+        if (resultInfo != null) {
+            resp.add("result_info", resultInfo);
+        }
+        return resp;
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> map = new HashMap<>();
+        if (query == null) return map;
+
+        for (String pair : query.split("&")) {
+            int idx = pair.indexOf('=');
+            if (idx == -1) continue;
+            map.put(pair.substring(0, idx), pair.substring(idx + 1));
+        }
+        return map;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
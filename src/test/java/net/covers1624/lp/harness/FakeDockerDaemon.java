@@ -0,0 +1,377 @@
+package net.covers1624.lp.harness;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * A minimal stand-in for the Docker Engine API, served over a unix socket.
+ * <p>
+ * Implements the container and network endpoints LabelProxy uses, plus
+ * {@code /events}. Containers are scripted with {@link #startContainer},
+ * {@link #stopContainer} and {@link #churn}.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class FakeDockerDaemon implements AutoCloseable {
+
+    private static final Gson GSON = new Gson();
+
+    private final Path socket;
+    private final ServerSocketChannel server;
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Fake Docker %d").build());
+
+    private final Map<String, Container> containers = new LinkedHashMap<>();
+    private final Map<String, Network> networks = new LinkedHashMap<>();
+    private final List<OutputStream> eventStreams = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicInteger nextIp = new AtomicInteger();
+
+    public final AtomicLong requests = new AtomicLong();
+
+    public FakeDockerDaemon(Path socket) throws IOException {
+        this.socket = socket;
+        Files.deleteIfExists(socket);
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        executor.execute(this::accept);
+    }
+
+    public Path socket() {
+        return socket;
+    }
+
+    /**
+     * Start a new container.
+     *
+     * @param name   The container name.
+     * @param labels The container labels.
+     * @return The container id.
+     */
+    public String startContainer(String name, Map<String, String> labels) {
+        String id;
+        synchronized (this) {
+            id = String.format("%064x", nextId.incrementAndGet());
+            containers.put(id, new Container(id, name, Map.copyOf(labels), System.currentTimeMillis() / 1000, new LinkedHashMap<>()));
+        }
+        emitEvent("start", id, name, labels);
+        return id;
+    }
+
+    /**
+     * Stop and remove a container.
+     *
+     * @param id The container id.
+     */
+    public void stopContainer(String id) {
+        Container container;
+        synchronized (this) {
+            container = containers.remove(id);
+        }
+        if (container != null) {
+            emitEvent("die", id, container.name, container.labels);
+            emitEvent("destroy", id, container.name, container.labels);
+        }
+    }
+
+    /**
+     * Replace {@code count} random running containers with new ones.
+     *
+     * @param rand   The random to pick containers with.
+     * @param count  The number of containers to replace.
+     * @param labels Labels for the new containers, by index of the replacement.
+     * @return The ids of the new containers.
+     */
+    public List<String> churn(Random rand, int count, IntFunction<Map<String, String>> labels) {
+        List<String> ids;
+        synchronized (this) {
+            ids = new ArrayList<>(containers.keySet());
+        }
+        Collections.shuffle(ids, rand);
+        List<String> started = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (i < ids.size()) {
+                stopContainer(ids.get(i));
+            }
+            started.add(startContainer("churn-" + nextId.get(), labels.apply(i)));
+        }
+        return started;
+    }
+
+    public synchronized int containerCount() {
+        return containers.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        executor.shutdownNow();
+        Files.deleteIfExists(socket);
+    }
+
+    private void accept() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel channel = server.accept();
+                executor.execute(() -> serve(channel));
+            } catch (ClosedChannelException ex) {
+                return;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (channel) {
+            InputStream is = new BufferedInputStream(Channels.newInputStream(channel));
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel));
+            while (true) {
+                String requestLine = readLine(is);
+                if (requestLine == null || requestLine.isEmpty()) return;
+                requests.incrementAndGet();
+
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(is)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+                if ("100-continue".equalsIgnoreCase(headers.get("expect"))) {
+                    os.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                    os.flush();
+                }
+                byte[] body = is.readNBytes(Integer.parseInt(headers.getOrDefault("content-length", "0")));
+
+                String[] parts = requestLine.split(" ");
+                String path = parts[1];
+                int query = path.indexOf('?');
+                if (query != -1) path = path.substring(0, query);
+                // Clients may pin an api version.
+                if (path.matches("^/v\\d+\\.\\d+/.*")) {
+                    path = path.substring(path.indexOf('/', 1));
+                }
+
+                if (parts[0].equals("GET") && path.equals("/events")) {
+                    streamEvents(os);
+                    return;
+                }
+                Response resp = handle(parts[0], path, body);
+                byte[] bytes = resp.body != null ? GSON.toJson(resp.body).getBytes(StandardCharsets.UTF_8) : new byte[0];
+                os.write(("HTTP/1.1 " + resp.status + " " + (resp.status < 400 ? "OK" : "Error") + "\r\n"
+                          + "Content-Type: application/json\r\n"
+                          + "Content-Length: " + bytes.length + "\r\n"
+                          + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                os.write(bytes);
+                os.flush();
+                if ("close".equalsIgnoreCase(headers.get("connection"))) return;
+            }
+        } catch (IOException ignored) {
+            // Client went away.
+        }
+    }
+
+    private synchronized Response handle(String method, String path, byte[] body) {
+        String[] parts = path.substring(1).split("/");
+        if (method.equals("GET") && path.equals("/containers/json")) {
+            JsonArray list = new JsonArray();
+            for (Container container : containers.values()) {
+                list.add(container.summary());
+            }
+            return new Response(200, list);
+        }
+        if (method.equals("GET") && parts.length == 3 && parts[0].equals("containers") && parts[2].equals("json")) {
+            Container container = containers.get(parts[1]);
+            if (container == null) return notFound("No such container: " + parts[1]);
+            return new Response(200, container.inspect(networks));
+        }
+        if (method.equals("POST") && path.equals("/networks/create")) {
+            JsonObject req = GSON.fromJson(new String(body, StandardCharsets.UTF_8), JsonObject.class);
+            String name = req.get("Name").getAsString();
+            if (findNetwork(name) != null) return new Response(409, message("network with name " + name + " already exists"));
+            Network network = new Network(String.format("%064x", nextId.incrementAndGet()), name);
+            networks.put(network.id, network);
+            JsonObject resp = new JsonObject();
+            resp.addProperty("Id", network.id);
+            resp.addProperty("Warning", "");
+            return new Response(201, resp);
+        }
+        if (method.equals("GET") && parts.length == 2 && parts[0].equals("networks")) {
+            Network network = findNetwork(parts[1]);
+            if (network == null) return notFound("network " + parts[1] + " not found");
+            return new Response(200, network.inspect());
+        }
+        if (method.equals("POST") && parts.length == 3 && parts[0].equals("networks") && parts[2].equals("connect")) {
+            Network network = findNetwork(parts[1]);
+            if (network == null) return notFound("network " + parts[1] + " not found");
+            JsonObject req = GSON.fromJson(new String(body, StandardCharsets.UTF_8), JsonObject.class);
+            Container container = containers.get(req.get("Container").getAsString());
+            if (container == null) return notFound("No such container: " + req.get("Container").getAsString());
+            int ip = nextIp.incrementAndGet();
+            container.networks.put(network.id, "172.18." + (ip / 250) % 256 + "." + (ip % 250 + 2));
+            return new Response(200, null);
+        }
+        return notFound("page not found");
+    }
+
+    private @Nullable Network findNetwork(String nameOrId) {
+        Network network = networks.get(nameOrId);
+        if (network != null) return network;
+
+        for (Network n : networks.values()) {
+            if (n.name.equals(nameOrId)) return n;
+        }
+        return null;
+    }
+
+    private void streamEvents(OutputStream os) throws IOException {
+        os.write(("HTTP/1.1 200 OK\r\n"
+                  + "Content-Type: application/json\r\n"
+                  + "Transfer-Encoding: chunked\r\n"
+                  + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        os.flush();
+        eventStreams.add(os);
+        // Hold the connection open until the client goes away, or we are closed.
+        synchronized (os) {
+            try {
+                os.wait();
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    private void emitEvent(String action, String id, String name, Map<String, String> labels) {
+        if (eventStreams.isEmpty()) return;
+
+        JsonObject attributes = new JsonObject();
+        labels.forEach(attributes::addProperty);
+        attributes.addProperty("name", name);
+        JsonObject actor = new JsonObject();
+        actor.addProperty("ID", id);
+        actor.add("Attributes", attributes);
+        JsonObject event = new JsonObject();
+        long nanos = System.currentTimeMillis() * 1_000_000;
+        event.addProperty("Type", "container");
+        event.addProperty("Action", action);
+        event.addProperty("id", id);
+        event.add("Actor", actor);
+        event.addProperty("time", nanos / 1_000_000_000);
+        event.addProperty("timeNano", nanos);
+
+        byte[] bytes = (GSON.toJson(event) + "\n").getBytes(StandardCharsets.UTF_8);
+        for (OutputStream os : eventStreams) {
+            synchronized (os) {
+                try {
+                    os.write((Integer.toHexString(bytes.length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    os.write(bytes);
+                    os.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                    os.flush();
+                } catch (IOException ex) {
+                    eventStreams.remove(os);
+                    os.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static @Nullable String readLine(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = is.read()) != -1) {
+            if (b == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+                return sb.toString();
+            }
+            sb.append((char) b);
+        }
+        return sb.isEmpty() ? null : sb.toString();
+    }
+
+    private static Response notFound(String message) {
+        return new Response(404, message(message));
+    }
+
+    private static JsonObject message(String message) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("message", message);
+        return obj;
+    }
+
+    private record Response(int status, @Nullable JsonElement body) { }
+
+    private record Network(String id, String name) {
+
+        private JsonObject inspect() {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("Name", name);
+            obj.addProperty("Id", id);
+            obj.addProperty("Scope", "local");
+            obj.addProperty("Driver", "bridge");
+            obj.add("Labels", new JsonObject());
+            return obj;
+        }
+    }
+
+    private record Container(String id, String name, Map<String, String> labels, long created, Map<String, String> networks) {
+
+        private JsonObject summary() {
+            JsonObject obj = new JsonObject();
+            obj.addProperty("Id", id);
+            JsonArray names = new JsonArray();
+            names.add("/" + name);
+            obj.add("Names", names);
+            obj.addProperty("Image", "example/" + name + ":latest");
+            obj.addProperty("Created", created);
+            obj.add("Labels", GSON.toJsonTree(labels));
+            obj.addProperty("State", "running");
+            return obj;
+        }
+
+        private JsonObject inspect(Map<String, Network> allNetworks) {
+            JsonObject config = new JsonObject();
+            config.add("Labels", GSON.toJsonTree(labels));
+
+            JsonObject nets = new JsonObject();
+            networks.forEach((networkId, ip) -> {
+                JsonObject net = new JsonObject();
+                net.add("Aliases", null);
+                net.addProperty("NetworkID", networkId);
+                net.addProperty("EndpointID", String.format("%064x", Math.abs((long) ip.hashCode())));
+                net.addProperty("Gateway", "172.18.0.1");
+                net.addProperty("IPAddress", ip);
+                nets.add(allNetworks.get(networkId).name, net);
+            });
+            JsonObject settings = new JsonObject();
+            settings.add("Networks", nets);
+
+            JsonObject obj = new JsonObject();
+            obj.addProperty("Id", id);
+            obj.addProperty("Name", "/" + name);
+            obj.add("Config", config);
+            obj.add("NetworkSettings", settings);
+            return obj;
+        }
+    }
+}
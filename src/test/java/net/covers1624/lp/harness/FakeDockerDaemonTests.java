@@ -0,0 +1,80 @@
+package net.covers1624.lp.harness;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class FakeDockerDaemonTests {
+
+    private static final Gson GSON = new Gson();
+
+    @TempDir
+    public Path tempDir;
+
+    @Test
+    public void testContainersAndNetworks() throws IOException {
+        try (FakeDockerDaemon docker = new FakeDockerDaemon(tempDir.resolve("docker.sock"));
+             SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(docker.socket()));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+            OutputStream os = Channels.newOutputStream(channel);
+
+            String id = docker.startContainer("web", Map.of("LabelProxy.host", "web.example.com"));
+            JsonArray list = GSON.fromJson(request(reader, os, "GET", "/v1.25/containers/json", null), JsonArray.class);
+            assertEquals(1, list.size());
+            assertEquals(id, list.get(0).getAsJsonObject().get("Id").getAsString());
+
+            assertEquals("404", request(reader, os, "GET", "/v1.25/networks/http", null));
+            request(reader, os, "POST", "/v1.25/networks/create", "{\"Name\":\"http\"}");
+            request(reader, os, "POST", "/v1.25/networks/http/connect", "{\"Container\":\"" + id + "\"}");
+
+            JsonObject inspect = GSON.fromJson(request(reader, os, "GET", "/v1.25/containers/" + id + "/json", null), JsonObject.class);
+            assertEquals("web.example.com", inspect.getAsJsonObject("Config").getAsJsonObject("Labels").get("LabelProxy.host").getAsString());
+            assertEquals("172.18.0.3", inspect.getAsJsonObject("NetworkSettings").getAsJsonObject("Networks").getAsJsonObject("http").get("IPAddress").getAsString());
+
+            docker.churn(new Random(0), 1, i -> Map.of());
+            assertEquals(1, docker.containerCount());
+            assertEquals("404", request(reader, os, "GET", "/v1.25/containers/" + id + "/json", null));
+        }
+    }
+
+    // Returns the body, or the status code for errors.
+    private static String request(BufferedReader reader, OutputStream os, String method, String path, String body) throws IOException {
+        byte[] bytes = body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        os.write((method + " " + path + " HTTP/1.1\r\nHost: v1.25\r\nContent-Length: " + bytes.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        os.write(bytes);
+        os.flush();
+
+        String status = reader.readLine().split(" ")[1];
+        int length = 0;
+        String line;
+        while (!(line = reader.readLine()).isEmpty()) {
+            if (line.startsWith("Content-Length:")) {
+                length = Integer.parseInt(line.substring("Content-Length:".length()).trim());
+            }
+        }
+        char[] chars = new char[length];
+        int read = 0;
+        while (read < length) {
+            read += reader.read(chars, read, length - read);
+        }
+        return status.startsWith("2") ? new String(chars) : status;
+    }
+}
@@ -0,0 +1,124 @@
+package net.covers1624.lp.harness;
+
+import net.covers1624.lp.Config;
+import net.covers1624.lp.LabelProxy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Runs a real {@link LabelProxy} against the fake Docker, Cloudflare and ACME
+ * servers, and a stub nginx, entirely offline.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class LabelProxyHarness implements AutoCloseable {
+
+    public final Path dir;
+    public final String zone;
+    public final FakeDockerDaemon docker;
+    public final FakeCloudflareServer cloudflare;
+    public final FakeAcmeServer acme;
+    public final StubNginx nginx;
+    public final LabelProxy proxy;
+
+    private final Thread thread;
+    private final Path hostConfigDir;
+
+    public LabelProxyHarness(Path dir, String zone) throws IOException, GeneralSecurityException {
+        this.dir = dir;
+        this.zone = zone;
+        docker = new FakeDockerDaemon(dir.resolve("docker.sock"));
+        cloudflare = new FakeCloudflareServer();
+        cloudflare.addZone(zone);
+        acme = new FakeAcmeServer(cloudflare::txtRecords);
+        nginx = new StubNginx(dir.resolve("bin"));
+
+        Config config = configure(new Config(), dir, docker, cloudflare, acme, nginx);
+        hostConfigDir = config.nginx.dir.resolve("conf/nginx.conf.d");
+        proxy = new LabelProxy(config);
+        thread = new Thread(proxy::run, "LabelProxy Harness");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Point a config at the given stand-ins, with everything else kept inside {@code dir}.
+     *
+     * @return The same config.
+     */
+    public static Config configure(Config config, Path dir, FakeDockerDaemon docker, FakeCloudflareServer cloudflare, FakeAcmeServer acme, StubNginx nginx) {
+        config.logsDir = dir.resolve("logs");
+        config.tempDir = dir.resolve("tmp");
+        config.docker.socket = docker.socket().toString();
+        config.nginx.executable = nginx.executable().toString();
+        config.nginx.dir = dir.resolve("nginx");
+        config.nginx.user = System.getProperty("user.name");
+        config.letsEncrypt.dir = dir.resolve("letsencrypt");
+        config.letsEncrypt.email = "no";
+        config.letsEncrypt.directoryUrl = acme.directoryUrl();
+        config.letsEncrypt.dnsPropagationSeconds = 0;
+        config.cloudflare.apiUrl = cloudflare.apiUrl();
+        config.cloudflare.requestsPerSecond = 10_000;
+        config.cloudflare.requestBurst = 10_000;
+        Config.CloudflareAuth auth = new Config.CloudflareAuth();
+        auth.email = "harness@example.com";
+        auth.key = "harness";
+        config.cloudflareAuths.add(auth);
+        return config;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Start a container proxied at {@code <name>.<zone>}.
+     *
+     * @param name The container name, and host prefix.
+     * @return The container id.
+     */
+    public String startContainer(String name) {
+        return docker.startContainer(name, labels(name));
+    }
+
+    public Map<String, String> labels(String name) {
+        return Map.of(
+                "LabelProxy.host", name + "." + zone,
+                "LabelProxy.port", "8080"
+        );
+    }
+
+    /**
+     * @return The hosts nginx currently has configs for.
+     */
+    public Set<String> activeHosts() throws IOException {
+        Set<String> hosts = new HashSet<>();
+        if (Files.notExists(hostConfigDir)) return hosts;
+
+        try (Stream<Path> files = Files.list(hostConfigDir)) {
+            files.forEach(e -> {
+                String name = e.getFileName().toString();
+                hosts.add(name.substring(0, name.length() - ".conf".length()));
+            });
+        }
+        return hosts;
+    }
+
+    @Override
+    public void close() throws Exception {
+        proxy.quit();
+        if (thread.isAlive()) {
+            proxy.nginx.stopNginx();
+            thread.join();
+        }
+        acme.close();
+        cloudflare.close();
+        docker.close();
+    }
+}
@@ -0,0 +1,79 @@
+package net.covers1624.lp.harness;
+
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives a {@link LabelProxyHarness} with many containers, and reports how
+ * long it takes for them to be served.
+ * <p>
+ * Usage: {@code LoadTest [containers] [churn]}, defaults to 10000 and 10%.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class LoadTest {
+
+    private static final String ZONE = "harness.test";
+
+    public static void main(String[] args) throws Exception {
+        int containers = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int churn = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(1, containers / 10);
+
+        try (LabelProxyHarness harness = new LabelProxyHarness(Files.createTempDirectory("lp-harness"), ZONE)) {
+            harness.start();
+
+            Map<String, Long> started = new HashMap<>();
+            for (int i = 0; i < containers; i++) {
+                harness.startContainer("c" + i);
+                started.put("c" + i + "." + ZONE, System.nanoTime());
+            }
+            report("Initial", harness, started);
+
+            Map<String, Long> churned = new HashMap<>();
+            int[] next = { containers };
+            harness.docker.churn(new Random(0), churn, i -> {
+                String name = "c" + next[0]++;
+                churned.put(name + "." + ZONE, System.nanoTime());
+                return harness.labels(name);
+            });
+            report("Churn", harness, churned);
+
+            System.out.printf("Docker requests: %d, certificates issued: %d, nginx reloads: %d%n",
+                    harness.docker.requests.get(), harness.acme.issued.get(), harness.nginx.count("reload"));
+        }
+    }
+
+    private static void report(String phase, LabelProxyHarness harness, Map<String, Long> started) throws Exception {
+        long begin = started.values().stream().mapToLong(e -> e).min().orElse(System.nanoTime());
+        Map<String, Long> pending = new HashMap<>(started);
+        List<Long> latencies = new ArrayList<>(started.size());
+        while (!pending.isEmpty()) {
+            Set<String> active = harness.activeHosts();
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<String, Long>> iterator = pending.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (active.contains(entry.getKey())) {
+                    latencies.add(now - entry.getValue());
+                    iterator.remove();
+                }
+            }
+            Thread.sleep(100);
+        }
+        long total = System.nanoTime() - begin;
+        Collections.sort(latencies);
+        System.out.printf("%s: %d hosts in %.1fs (%.1f hosts/s), latency p50 %.2fs p99 %.2fs max %.2fs%n",
+                phase,
+                started.size(),
+                total / 1e9,
+                started.size() / (total / 1e9),
+                seconds(latencies, 0.5),
+                seconds(latencies, 0.99),
+                seconds(latencies, 1));
+    }
+
+    private static double seconds(List<Long> sorted, double percentile) {
+        int idx = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, idx)) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,57 @@
+package net.covers1624.lp.harness;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+/**
+ * A shell script standing in for the nginx binary.
+ * <p>
+ * Config tests, reloads and reopens always succeed, the master process
+ * just sleeps until it is killed. Every invocation is appended to a log,
+ * so reloads can be counted.
+ * <p>
+ * Created by covers1624 on 19/10/26.
+ */
+public class StubNginx {
+
+    private final Path executable;
+    private final Path log;
+
+    public StubNginx(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        executable = dir.resolve("nginx");
+        log = dir.resolve("invocations.log");
+        Files.writeString(executable, """
+                #!/bin/sh
+                echo "$*" >> "%s"
+                for arg in "$@"; do
+                    case "$arg" in
+                        -V) echo "nginx version: nginx/stub"; exit 0 ;;
+                        -t|-s) exit 0 ;;
+                    esac
+                done
+                exec sleep 2147483647
+                """.formatted(log.toAbsolutePath()));
+        Files.setPosixFilePermissions(executable, PosixFilePermissions.fromString("rwxr-xr-x"));
+    }
+
+    public Path executable() {
+        return executable;
+    }
+
+    /**
+     * @param arg The argument to look for, such as {@code reload}.
+     * @return How many invocations included the argument.
+     */
+    public long count(String arg) throws IOException {
+        if (Files.notExists(log)) return 0;
+
+        List<String> lines = Files.readAllLines(log);
+        return lines.stream()
+                .filter(e -> List.of(e.split(" ")).contains(arg))
+                .count();
+    }
+}
@@ -0,0 +1,109 @@
+package net.covers1624.lp.letsencrypt;
+
+import net.covers1624.lp.letsencrypt.LetsEncryptService.CertInfo;
+import net.covers1624.quack.gson.JsonUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class CertIndexTests {
+
+    @Test
+    public void testStaleRemoveKeepsNewer(@TempDir Path dir) {
+        CertInfo old = certInfo(dir, "a.com", "1");
+        CertInfo renewed = certInfo(dir, "a.com", "2");
+
+        CertIndex index = new CertIndex(dir);
+        index.load();
+        index.put(old).join();
+        index.put(renewed).join();
+        index.remove(old).join();
+        assertEquals(renewed, index.get("a.com"));
+
+        CertIndex reloaded = new CertIndex(dir);
+        reloaded.load();
+        assertEquals(renewed, reloaded.get("a.com"));
+    }
+
+    @Test
+    public void testMigrateLegacyKeepsLastUsed(@TempDir Path dir) throws IOException {
+        CertInfo info = certInfo(dir, "a.com", "1");
+        JsonUtils.write(LetsEncryptService.GSON, dir.resolve("a.com.json"), info);
+        Files.writeString(dir.resolve("lastUsed.journal"), "a.com 1000\na.com 2000\nb.com 3000\ntorn");
+
+        CertIndex index = new CertIndex(dir);
+        index.load();
+        assertEquals(info, index.get("a.com"));
+        assertEquals(Instant.ofEpochMilli(2000), index.getLastUsed("a.com"));
+        assertNull(index.getLastUsed("b.com"));
+        assertFalse(Files.exists(dir.resolve("lastUsed.journal")));
+    }
+
+    @Test
+    public void testRenewalKeepsOldDirectoryForGrace(@TempDir Path dir) throws IOException {
+        Instant start = Instant.parse("2026-10-19T00:00:00Z");
+        AtomicReference<Instant> now = new AtomicReference<>(start);
+        CertInfo old = certInfo(dir, "a.com", "1");
+        CertInfo renewed = certInfo(dir, "a.com", "2");
+        Path oldDir = old.cert().getParent();
+        Files.createDirectories(oldDir);
+        Files.createDirectories(renewed.cert().getParent());
+        // Issued 60 days ago, as it would be at renewal.
+        Files.setLastModifiedTime(oldDir, FileTime.from(start.minus(Duration.ofDays(60))));
+
+        CertIndex index = new CertIndex(dir, now::get);
+        index.load();
+        index.put(old).join();
+        index.put(renewed).join();
+
+        index.collectGarbage();
+        assertTrue(Files.exists(oldDir));
+
+        now.set(start.plus(Duration.ofHours(23)));
+        index.collectGarbage();
+        assertTrue(Files.exists(oldDir));
+
+        now.set(start.plus(Duration.ofDays(1)));
+        index.collectGarbage();
+        assertFalse(Files.exists(oldDir));
+        assertTrue(Files.exists(renewed.cert().getParent()));
+    }
+
+    @Test
+    public void testSkipsEntryWithoutOp(@TempDir Path dir) throws IOException {
+        Files.writeString(dir.resolve("index.jsonl"), "{\"host\":\"a.com\",\"time\":0}\n");
+
+        CertIndex index = new CertIndex(dir);
+        index.load();
+        assertTrue(index.values().isEmpty());
+    }
+
+    private static CertInfo certInfo(Path dir, String host, String issuance) {
+        Path certDir = dir.resolve(host + "-" + issuance);
+        return new CertInfo(
+                host,
+                new Date(1_000_000),
+                new Date(0),
+                null,
+                certDir.resolve("domain.csr"),
+                certDir.resolve("privkey.pem"),
+                certDir.resolve("pubkey.pem"),
+                certDir.resolve("cert.pem"),
+                certDir.resolve("chain.pem"),
+                certDir.resolve("fullchain.pem")
+        );
+    }
+}
@@ -1,11 +1,21 @@
 package net.covers1624.lp.logging;
 
+import net.covers1624.lp.Config;
+import net.covers1624.lp.util.DiscordWebhook;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
 import org.junit.jupiter.api.Test;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * Created by covers1624 on 11/4/24.
@@ -41,4 +51,61 @@ public class DiscordWebhookAppenderTests {
         assertEquals("def", DiscordWebhookAppender.fillBuffer(lines, 3));
         assertEquals("g", DiscordWebhookAppender.fillBuffer(lines, 3));
     }
+
+    @Test
+    public void testStalledSendDropsOverflow() throws InterruptedException {
+        Config config = new Config();
+        config.discord.webhookUrl = "http://localhost/webhook";
+        config.discord.name = "test";
+        config.discord.queueCapacity = 16;
+
+        BlockingQueue<DiscordWebhook> sent = new LinkedBlockingQueue<>();
+        Semaphore permits = new Semaphore(0);
+        DiscordWebhookAppender appender = new DiscordWebhookAppender(
+                PatternLayout.newBuilder().withPattern("%msg").build(),
+                config,
+                webhook -> {
+                    sent.add(webhook);
+                    permits.acquireUninterruptibly();
+                    return new DiscordWebhook.Response(204, -1, null, null);
+                }
+        );
+        appender.start();
+        try {
+            // Each message is a sixth of a webhook, so a webhook holds far fewer than the buffer.
+            int id = 0;
+            appender.append(event(id++));
+            assertNotNull(sent.poll(10, TimeUnit.SECONDS));
+
+            // Whilst Discord is stalled, the backlog must stay in the buffer rather than pile up on the consumer.
+            for (int round = 0; round < 4; round++) {
+                for (int i = 0; i < 16; i++) {
+                    appender.append(event(id++));
+                }
+                permits.release();
+                assertNotNull(sent.poll(10, TimeUnit.SECONDS));
+            }
+
+            permits.release(Integer.MAX_VALUE / 2);
+            boolean reported = false;
+            DiscordWebhook webhook;
+            while (!reported && (webhook = sent.poll(10, TimeUnit.SECONDS)) != null) {
+                for (DiscordWebhook.Embed embed : webhook.getEmbeds()) {
+                    reported |= embed.getDescription().contains("Discord could not keep up.");
+                }
+            }
+            assertTrue(reported, "Dropped messages were not reported.");
+        } finally {
+            appender.stop();
+            permits.release(Integer.MAX_VALUE / 2);
+        }
+    }
+
+    private static Log4jLogEvent event(int id) {
+        return Log4jLogEvent.newBuilder()
+                .setLoggerName("test")
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(id + " " + "x".repeat(1000)))
+                .build();
+    }
 }
@@ -0,0 +1,52 @@
+package net.covers1624.lp.logging;
+
+import net.covers1624.lp.logging.EventFolder.Fingerprint;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class EventFolderTests {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testFoldsRepeats() {
+        AtomicLong clock = new AtomicLong();
+        EventFolder folder = new EventFolder(Duration.ofSeconds(60), clock::get);
+        Fingerprint scan = new Fingerprint("LabelProxy", "Failed to scan containers.", "java.lang.IllegalStateException");
+        Fingerprint other = new Fingerprint("LabelProxy", "Failed to scan containers.", "java.io.IOException");
+
+        assertTrue(folder.offer(scan));
+        folder.setSummary(scan, "Failed to scan containers.");
+        assertEquals(-1, folder.nanosUntilExpiry());
+        for (int i = 0; i < 57; i++) {
+            clock.addAndGet(SECOND / 2);
+            assertFalse(folder.offer(scan));
+        }
+        // Different exception type, different fingerprint.
+        assertTrue(folder.offer(other));
+        assertEquals(List.of(), folder.expire());
+
+        clock.set(60 * SECOND);
+        assertEquals(0, folder.nanosUntilExpiry());
+        assertEquals(List.of("Failed to scan containers. (x57 in last 60s)"), folder.expire());
+
+        // Still folding in the next window, only a summary will be sent.
+        assertFalse(folder.offer(scan));
+        clock.addAndGet(60 * SECOND);
+        assertEquals(List.of("Failed to scan containers. (x1 in last 60s)"), folder.expire());
+
+        // A quiet window ends folding.
+        clock.addAndGet(60 * SECOND);
+        assertEquals(List.of(), folder.expire());
+        assertTrue(folder.offer(scan));
+    }
+}
@@ -0,0 +1,58 @@
+package net.covers1624.lp.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class MpscRingBufferTests {
+
+    @Test
+    public void testBounded() {
+        MpscRingBuffer<String> buffer = new MpscRingBuffer<>(3);
+        assertEquals(4, buffer.capacity());
+        assertTrue(buffer.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer("a" + i));
+        }
+        assertFalse(buffer.offer("overflow"));
+
+        // Draining frees slots for the next lap, in order.
+        assertEquals("a0", buffer.poll());
+        assertTrue(buffer.offer("a4"));
+        for (int i = 1; i < 5; i++) {
+            assertEquals("a" + i, buffer.poll());
+        }
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<>(1 << 16);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int base = t * 10000;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    assertTrue(buffer.offer(base + i));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Set<Integer> seen = new HashSet<>();
+        Integer value;
+        while ((value = buffer.poll()) != null) {
+            assertTrue(seen.add(value));
+        }
+        assertEquals(40000, seen.size());
+    }
+}
@@ -0,0 +1,58 @@
+package net.covers1624.lp.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class MetricsRegistryTests {
+
+    @Test
+    public void testTextFormat() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("test_requests_total", "Requests.", "op").labels("get\"x").add(3);
+        registry.gauge("test_queue", "Queue depth.", () -> 2.5);
+        Histogram histogram = new Histogram(1, 2);
+        registry.register("test_seconds", "Latency.", histogram);
+        histogram.observe(0.5);
+        histogram.observe(5);
+
+        StringWriter sw = new StringWriter();
+        registry.write(sw);
+        assertEquals("""
+                # HELP test_queue Queue depth.
+                # TYPE test_queue gauge
+                test_queue 2.5
+                # HELP test_requests_total Requests.
+                # TYPE test_requests_total counter
+                test_requests_total{op="get\\"x"} 3
+                # HELP test_seconds Latency.
+                # TYPE test_seconds histogram
+                test_seconds_bucket{le="1"} 1
+                test_seconds_bucket{le="2"} 1
+                test_seconds_bucket{le="+Inf"} 2
+                test_seconds_sum 5.5
+                test_seconds_count 2
+                """, sw.toString());
+    }
+
+    @Test
+    public void testReRegister() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("test_total", "Test.");
+        assertSame(counter, registry.counter("test_total", "Test."));
+        assertThrows(IllegalArgumentException.class, () -> registry.histogram("test_total", "Test."));
+        assertThrows(IllegalArgumentException.class, () -> registry.counter("test_total", "Test.", "op"));
+
+        registry.register("test_total", "Test.", counter);
+        assertThrows(IllegalArgumentException.class, () -> registry.register("test_total", "Test.", new Counter()));
+        assertThrows(IllegalArgumentException.class, () -> registry.gauge("test_total", "Test.", () -> 1));
+        registry.gauge("test_queue", "Test.", () -> 1);
+        assertThrows(IllegalArgumentException.class, () -> registry.gauge("test_queue", "Test.", () -> 2));
+    }
+}
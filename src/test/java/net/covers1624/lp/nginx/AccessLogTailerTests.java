@@ -0,0 +1,68 @@
+package net.covers1624.lp.nginx;
+
+import net.covers1624.lp.metrics.MetricsRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class AccessLogTailerTests {
+
+    @Test
+    public void testTailAcrossRotation(@TempDir Path dir) throws IOException {
+        Path log = dir.resolve("access.json.log");
+        MetricsRegistry metrics = new MetricsRegistry();
+        AccessLogTailer tailer = new AccessLogTailer(log, metrics);
+
+        append(log, line("a.com", 200, "0.010", "0.008"));
+        tailer.poll(true);
+        // Partial line, must wait for the newline.
+        Files.writeString(log, "{\"host\":\"a.com\",\"status\":502,", StandardOpenOption.APPEND);
+        tailer.poll(true);
+        append(log, "\"bytes\":0,\"request_time\":1.5,\"upstream_time\":\"1.000, 0.500\"}");
+
+        // Rotate like NginxProcess does, the rest of the old file should still be read.
+        Files.move(log, dir.resolve("access.json-old.log"));
+        append(dir.resolve("access.json-old.log"), line("a.com", 204, "0.020", "-"));
+        append(log, line("b.com", 404, "0.001", "-"));
+        append(log, line("", 444, "0.000", "-"));
+        append(log, "not json");
+        tailer.poll(true);
+
+        assertEquals(2, count(metrics, "a.com", "2xx"));
+        assertEquals(1, count(metrics, "a.com", "5xx"));
+        assertEquals(1, count(metrics, "b.com", "4xx"));
+        assertEquals(3, metrics.histogram("labelproxy_http_request_seconds", "", "host").labels("a.com").getCount());
+        assertEquals(2, metrics.histogram("labelproxy_http_upstream_seconds", "", "host").labels("a.com").getCount());
+        assertEquals(1.508, metrics.histogram("labelproxy_http_upstream_seconds", "", "host").labels("a.com").getSum(), 1e-9);
+        assertEquals(1, metrics.counter("labelproxy_access_log_malformed_total", "").get());
+    }
+
+    @Test
+    public void testParseUpstreamTime() {
+        assertEquals(-1, AccessLogTailer.parseUpstreamTime("-"));
+        assertEquals(-1, AccessLogTailer.parseUpstreamTime(""));
+        assertEquals(0.5, AccessLogTailer.parseUpstreamTime("0.500"));
+        assertEquals(1.5, AccessLogTailer.parseUpstreamTime("1.000, - : 0.500"), 1e-9);
+    }
+
+    private static long count(MetricsRegistry metrics, String host, String status) {
+        return metrics.counter("labelproxy_http_requests_total", "", "host", "status").labels(host, status).get();
+    }
+
+    private static String line(String host, int status, String requestTime, String upstreamTime) {
+        return "{\"host\":\"" + host + "\",\"status\":" + status + ",\"bytes\":10,\"request_time\":" + requestTime + ",\"upstream_time\":\"" + upstreamTime + "\"}";
+    }
+
+    private static void append(Path file, String line) throws IOException {
+        Files.writeString(file, line + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
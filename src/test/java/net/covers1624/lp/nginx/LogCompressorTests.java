@@ -0,0 +1,74 @@
+package net.covers1624.lp.nginx;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class LogCompressorTests {
+
+    @Test
+    public void testZstdBlocks(@TempDir Path dir) throws IOException {
+        byte[] data = testData();
+        Path out = compress(dir, LogCodec.ZSTD, data);
+        try (InputStream is = new ZstdCompressorInputStream(Files.newInputStream(out))) {
+            assertArrayEquals(data, is.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testGzipBlocks(@TempDir Path dir) throws IOException {
+        byte[] data = testData();
+        Path out = compress(dir, LogCodec.GZIP, data);
+        try (InputStream is = new GZIPInputStream(Files.newInputStream(out))) {
+            assertArrayEquals(data, is.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testBzip2Blocks(@TempDir Path dir) throws IOException {
+        byte[] data = testData();
+        Path out = compress(dir, LogCodec.BZIP2, data);
+        try (InputStream is = new BZip2CompressorInputStream(Files.newInputStream(out), true)) {
+            assertArrayEquals(data, is.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testEmpty(@TempDir Path dir) throws IOException {
+        Path out = compress(dir, LogCodec.GZIP, new byte[0]);
+        try (InputStream is = new GZIPInputStream(Files.newInputStream(out))) {
+            assertEquals(0, is.readAllBytes().length);
+        }
+    }
+
+    private static Path compress(Path dir, LogCodec codec, byte[] data) throws IOException {
+        Path in = dir.resolve("access.log");
+        Path out = dir.resolve("access.log." + codec.extension);
+        Files.write(in, data);
+        // Small blocks and a single thread, so the in-flight window is exercised too.
+        new LogCompressor(codec, 1, false, 1000).compressAsync(in, out).join();
+        assertFalse(Files.exists(in));
+        return out;
+    }
+
+    private static byte[] testData() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            sb.append("a.com 127.0.0.1 - - \"GET /").append(i).append(" HTTP/1.1\" 200\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
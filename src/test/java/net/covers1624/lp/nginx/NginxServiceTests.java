@@ -0,0 +1,85 @@
+package net.covers1624.lp.nginx;
+
+import net.covers1624.lp.Config;
+import net.covers1624.lp.ContainerConfiguration;
+import net.covers1624.lp.LabelProxy;
+import net.covers1624.lp.harness.StubNginx;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class NginxServiceTests {
+
+    @Test
+    public void testWarmStart(@TempDir Path dir) throws IOException {
+        StubNginx stub = new StubNginx(dir.resolve("bin"));
+        LabelProxy proxy = new LabelProxy(config(dir, stub));
+        // Nginx only logs its version and exits, we are only interested in the configs.
+        proxy.quit();
+
+        Path hostConfigDir = dir.resolve("nginx/conf/nginx.conf.d");
+        Files.createDirectories(hostConfigDir);
+        Files.writeString(hostConfigDir.resolve("matching.com.conf"), "server { }");
+        Files.writeString(hostConfigDir.resolve("mismatched.com.conf"), "server { edited }");
+        Files.writeString(hostConfigDir.resolve("stray.com.conf"), "server { }");
+
+        proxy.nginx.startNginx(
+                Map.of(
+                        "matching.com", NginxService.hashConfig("server { }"),
+                        "mismatched.com", NginxService.hashConfig("server { }"),
+                        "missing.com", NginxService.hashConfig("server { }")
+                ),
+                List.of(
+                        configuration("1", "matching.com"),
+                        configuration("2", "mismatched.com"),
+                        configuration("3", "missing.com")
+                )
+        );
+
+        // Only the host whose config still matches its hash is reused, everything else gets rebuilt.
+        assertEquals(Map.of("matching.com", NginxService.hashConfig("server { }")), proxy.nginx.snapshotHosts());
+        assertTrue(Files.exists(hostConfigDir.resolve("matching.com.conf")));
+        assertFalse(Files.exists(hostConfigDir.resolve("mismatched.com.conf")));
+        assertFalse(Files.exists(hostConfigDir.resolve("missing.com.conf")));
+        assertFalse(Files.exists(hostConfigDir.resolve("stray.com.conf")));
+        assertTrue(Files.exists(dir.resolve("nginx/conf/nginx.conf")));
+        assertEquals(1, stub.count("-t"));
+    }
+
+    private static Config config(Path dir, StubNginx stub) {
+        Config config = new Config();
+        config.logsDir = dir.resolve("logs");
+        config.tempDir = dir.resolve("tmp");
+        config.nginx.executable = stub.executable().toString();
+        config.nginx.dir = dir.resolve("nginx");
+        config.nginx.user = System.getProperty("user.name");
+        config.letsEncrypt.dir = dir.resolve("letsencrypt");
+        return config;
+    }
+
+    private static ContainerConfiguration configuration(String id, String host) {
+        return new ContainerConfiguration(
+                id,
+                "172.18.0.2",
+                host,
+                8080,
+                true,
+                false,
+                "/",
+                "",
+                List.of(),
+                List.of(),
+                Map.of()
+        );
+    }
+}
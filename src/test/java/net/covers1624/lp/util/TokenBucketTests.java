@@ -0,0 +1,64 @@
+package net.covers1624.lp.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Created by covers1624 on 19/10/26.
+ */
+public class TokenBucketTests {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testBurstThenRate() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucket bucket = new TokenBucket(4, 2, clock::get);
+
+        assertEquals(0, bucket.reserve());
+        assertEquals(0, bucket.reserve());
+        // Bucket is empty, each further reservation queues behind the last.
+        assertEquals(SECOND / 4, bucket.reserve());
+        assertEquals(SECOND / 2, bucket.reserve());
+
+        // After enough time, the bucket refills up to its burst.
+        clock.addAndGet(10 * SECOND);
+        assertEquals(0, bucket.reserve());
+        assertEquals(0, bucket.reserve());
+        assertEquals(SECOND / 4, bucket.reserve());
+    }
+
+    @Test
+    public void testPause() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucket bucket = new TokenBucket(4, 2, clock::get);
+
+        bucket.pause(Duration.ofSeconds(5));
+        // Nothing is handed out until the pause is over, then the bucket starts from empty.
+        assertEquals(5 * SECOND + SECOND / 4, bucket.reserve());
+
+        clock.addAndGet(10 * SECOND);
+        assertEquals(0, bucket.reserve());
+    }
+
+    @Test
+    public void testPauseAfterReserve() {
+        AtomicLong clock = new AtomicLong();
+        TokenBucket bucket = new TokenBucket(4, 1, clock::get);
+
+        assertEquals(0, bucket.reserve());
+        // Reserved before the pause, the waiter must still observe it once it wakes.
+        assertEquals(SECOND / 4, bucket.reserve());
+        bucket.pause(Duration.ofSeconds(5));
+
+        clock.addAndGet(SECOND / 4);
+        assertEquals(5 * SECOND - SECOND / 4, bucket.pauseRemaining());
+        clock.addAndGet(5 * SECOND);
+        assertEquals(0, bucket.pauseRemaining());
+    }
+}